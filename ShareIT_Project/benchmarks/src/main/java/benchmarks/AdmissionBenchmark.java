@@ -0,0 +1,59 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import server.UploadAdmission;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What admission adds to an upload, from 8 threads at once: taking a stream, holding and releasing
+ * disk space (which reads the free space of the upload disk), with enough streams for everyone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class AdmissionBenchmark {
+    
+    Path dir;
+    UploadAdmission admission;
+    
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        dir = Files.createTempDirectory("shareit-admission");
+        admission = new UploadAdmission(dir, 0, 64, 4, 256, 1000, 5);
+    }
+    
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    @State(Scope.Thread)
+    public static class Upload {
+        final String id = UUID.randomUUID().toString();
+        final String user = "user-" + id;
+    }
+    
+    @Benchmark
+    public void stream(Upload upload) throws IOException {
+        admission.enter(upload.user).close();
+    }
+    
+    // UPLOAD: a stream and the space for the whole file
+    @Benchmark
+    public void streamAndSpace(Upload upload) throws IOException {
+        try (UploadAdmission.Stream stream = admission.enter(upload.user)) {
+            admission.reserveSpace(upload.id, 1024);
+            admission.written(upload.id, 1024);
+            admission.releaseSpace(upload.id);
+        }
+    }
+}
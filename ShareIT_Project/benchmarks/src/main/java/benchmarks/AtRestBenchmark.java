@@ -0,0 +1,164 @@
+package benchmarks;
+
+import common.TransferCompression;
+import org.openjdk.jmh.annotations.*;
+import server.BlobStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * 16 MB of text content stored as it came and compacted: a plain download (compacted content is
+ * decompressed on the way out), a compressed download (plain content is compressed on the workers,
+ * compacted content goes out as stored), and what compacting it takes. The network is left out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AtRestBenchmark {
+    
+    private static final int CONTENT_BYTES = 16 * 1024 * 1024;
+    
+    @Param({"log", "csv"})
+    public String type;
+    
+    Path dir;
+    BlobStore store;
+    ExecutorService workers;
+    TransferCompression wire;
+    TransferCompression compactor;
+    byte[] data;
+    String plain;
+    String compacted;
+    
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        dir = Files.createTempDirectory("shareit-at-rest");
+        store = new BlobStore(dir);
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        wire = new TransferCompression(workers, Deflater.BEST_SPEED, 4);
+        compactor = new TransferCompression(Runnable::run, 6, 1);
+        data = Fixtures.content(type, CONTENT_BYTES);
+        plain = ingest(data);
+        // Same text one byte different, so it is stored apart
+        byte[] other = data.clone();
+        other[0] ^= 1;
+        compacted = ingest(other);
+        store.compact(compacted, compactor, 0.9);
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        workers.shutdown();
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    private String ingest(byte[] content) throws IOException {
+        return store.ingest(Channels.newChannel(new ByteArrayInputStream(content)), content.length);
+    }
+    
+    /**
+     * A store holding one freshly ingested copy of the content, for each compaction.
+     */
+    @State(Scope.Thread)
+    public static class Fresh {
+        Path dir;
+        BlobStore store;
+        String hash;
+        
+        @Setup(Level.Invocation)
+        public void ingest(AtRestBenchmark benchmark) throws IOException {
+            dir = Files.createTempDirectory("shareit-compact");
+            store = new BlobStore(dir);
+            hash = store.ingest(Channels.newChannel(new ByteArrayInputStream(benchmark.data)), CONTENT_BYTES);
+        }
+        
+        @TearDown(Level.Invocation)
+        public void delete() throws IOException {
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+    
+    @Benchmark
+    public long readPlain() throws IOException {
+        return read(plain);
+    }
+    
+    @Benchmark
+    public long readCompacted() throws IOException {
+        return read(compacted);
+    }
+    
+    @Benchmark
+    public long sendCompressedPlain() throws IOException {
+        return sendCompressed(plain);
+    }
+    
+    @Benchmark
+    public long sendCompressedCompacted() throws IOException {
+        return sendCompressed(compacted);
+    }
+    
+    // Returns the bytes saved
+    @Benchmark
+    public long compact(Fresh fresh) throws IOException {
+        return fresh.store.compact(fresh.hash, compactor, 0.9);
+    }
+    
+    private long read(String hash) throws IOException {
+        try (BlobStore.Content content = store.open(hash)) {
+            Discard discard = new Discard();
+            content.sendTo(0, content.size(), discard);
+            return discard.bytes;
+        }
+    }
+    
+    // As the server answers DOWNLOAD_RANGE_CODEC for the whole file
+    private long sendCompressed(String hash) throws IOException {
+        try (BlobStore.Content content = store.open(hash)) {
+            Discard discard = new Discard();
+            long sent = content.sendFrames(0, content.size(), discard);
+            if (sent < 0) {
+                sent = wire.send(content::read, content.size(), TransferCompression.Policy.COMPRESS, discard);
+            }
+            return sent;
+        }
+    }
+    
+    // The network, as far as the sender can tell: bytes are copied out, like into a socket buffer
+    private static class Discard implements WritableByteChannel {
+        private final ByteBuffer socketBuffer = ByteBuffer.allocate(TransferCompression.FRAME_SIZE + 64);
+        long bytes;
+        
+        @Override
+        public int write(ByteBuffer source) {
+            int n = Math.min(source.remaining(), socketBuffer.capacity());
+            socketBuffer.clear();
+            socketBuffer.put(source.duplicate().limit(source.position() + n));
+            source.position(source.position() + n);
+            bytes += n;
+            return n;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
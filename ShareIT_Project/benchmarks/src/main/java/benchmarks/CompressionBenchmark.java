@@ -0,0 +1,124 @@
+package benchmarks;
+
+import common.FileTransfer;
+import common.TransferCompression;
+import org.openjdk.jmh.annotations.*;
+import server.TransferScheduler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Effective transfer throughput by file type, with and without compression: 16 MB sent (read,
+ * compressed on the workers and written) and received (read, decompressed and written) per op,
+ * over an unlimited link and over a 1 Gbit/s link paced by the bandwidth shaper. The type decides
+ * the policy like on the server, so jpg is never compressed and bin is given up after one frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    
+    private static final int FILE_BYTES = 16 * 1024 * 1024;
+    
+    @Param({"log", "csv", "json", "jpg", "bin"})
+    public String type;
+    
+    @Param({"none", "deflate"})
+    public String codec;
+    
+    // Bytes per second, 0 for no limit
+    @Param({"0", "125000000"})
+    public long link;
+    
+    ExecutorService workers;
+    TransferCompression compression;
+    TransferCompression.Policy policy;
+    byte[] data;
+    byte[] wire;
+    
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        compression = new TransferCompression(workers, Deflater.BEST_SPEED, 4);
+        policy = TransferCompression.policyFor(FileTransfer.typeOf("file." + type));
+        data = Fixtures.content(type, FILE_BYTES);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(FILE_BYTES);
+        compression.send(this::read, FILE_BYTES, policy, Channels.newChannel(encoded));
+        wire = encoded.toByteArray();
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() {
+        workers.shutdown();
+    }
+    
+    private TransferScheduler.Flow link() {
+        return new TransferScheduler(link, 0, 1024 * 1024, 0, 1, 1).open("bench", FILE_BYTES, false);
+    }
+    
+    private void read(long position, ByteBuffer target) {
+        target.put(data, (int) position, target.remaining());
+    }
+    
+    @Benchmark
+    public long send() throws IOException {
+        WritableByteChannel out = link().shape(new Discard());
+        if (codec.equals(TransferCompression.NONE) || policy == TransferCompression.Policy.SKIP) {
+            for (int position = 0; position < FILE_BYTES; position += TransferCompression.FRAME_SIZE) {
+                out.write(ByteBuffer.wrap(data, position, TransferCompression.FRAME_SIZE));
+            }
+            return FILE_BYTES;
+        }
+        return compression.send(this::read, FILE_BYTES, policy, out);
+    }
+    
+    @Benchmark
+    public long receive() throws IOException {
+        byte[] file = new byte[FILE_BYTES];
+        if (codec.equals(TransferCompression.NONE) || policy == TransferCompression.Policy.SKIP) {
+            ReadableByteChannel in = link().shape(Channels.newChannel(new ByteArrayInputStream(data)));
+            ByteBuffer target = ByteBuffer.wrap(file);
+            while (target.hasRemaining()) {
+                in.read(target);
+            }
+            return FILE_BYTES;
+        }
+        ReadableByteChannel in = link().shape(Channels.newChannel(new ByteArrayInputStream(wire)));
+        return compression.receive(in, FILE_BYTES, (position, bytes) -> bytes.get(file, (int) position, bytes.remaining()));
+    }
+    
+    // The network, as far as the sender can tell: bytes are copied out, like into a socket buffer
+    private static class Discard implements WritableByteChannel {
+        private final ByteBuffer socketBuffer = ByteBuffer.allocate(TransferCompression.FRAME_SIZE + 64);
+        
+        @Override
+        public int write(ByteBuffer source) {
+            int n = source.remaining();
+            socketBuffer.clear();
+            socketBuffer.put(source);
+            return n;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * A logged in protocol connection, speaking the same framing as the client.
+ */
+final class Connection implements Closeable {
+    
+    final DataInputStream in;
+    final DataOutputStream out;
+    private final Socket socket;
+    
+    Connection(int port, String username) throws IOException {
+        this(port, username, null, true);
+    }
+    
+    // Over TLS unless tls is null; without register the user has to exist already
+    Connection(int port, String username, SSLContext tls, boolean register) throws IOException {
+        socket = tls != null ? tls.getSocketFactory().createSocket("localhost", port) : new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        
+        if (register) {
+            out.writeUTF("REGISTER");
+            out.writeUTF(username);
+            out.writeUTF("password");
+            out.writeUTF(username + "@example.com");
+        }
+        out.writeUTF("LOGIN");
+        out.writeUTF(username);
+        out.writeUTF("password");
+        out.flush();
+        if (register) {
+            in.readUTF();
+        }
+        expectSuccess(in.readUTF());
+    }
+    
+    // Over a socket already authenticated some other way, e.g. with ATTACH
+    Connection(Socket socket, DataInputStream in, DataOutputStream out) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+    }
+    
+    // UPLOAD; returns the new file id
+    String upload(String fileName, byte[] data, String receiver) throws IOException {
+        out.writeUTF("UPLOAD");
+        out.writeUTF(fileName);
+        out.writeLong(data.length);
+        out.writeUTF(receiver);
+        out.write(data);
+        out.flush();
+        expectSuccess(in.readUTF());
+        return in.readUTF();
+    }
+    
+    void delete(String fileId) throws IOException {
+        out.writeUTF("DELETE_FILE");
+        out.writeUTF(fileId);
+        out.flush();
+        expectSuccess(in.readUTF());
+    }
+    
+    // Skips one file row as written by the server
+    void readFileRow() throws IOException {
+        in.readUTF();
+        in.readUTF();
+        in.readUTF();
+        in.readUTF();
+        in.readLong();
+        in.readUTF();
+        in.readUTF();
+    }
+    
+    static void expectSuccess(String reply) throws IOException {
+        if (!reply.startsWith("SUCCESS")) {
+            throw new IOException("Unexpected reply: " + reply);
+        }
+    }
+    
+    Socket socket() {
+        return socket;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        out.writeUTF("LOGOUT");
+        out.flush();
+        socket.close();
+    }
+}
@@ -0,0 +1,56 @@
+package benchmarks;
+
+import common.ContentHasher;
+import org.openjdk.jmh.annotations.*;
+import security.EncryptionUtil;
+import security.PasswordHasher;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password hashing as done on registration and on logins that miss the verification cache, the
+ * unsalted hash of older versions, and the content hashing every upload goes through. EncryptionUtil.encrypt/decrypt aren't covered: nothing calls them and their key
+ * isn't a valid AES key length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+    
+    ByteBuffer content;
+    final PasswordHasher passwordHasher = new PasswordHasher(PasswordHasher.DEFAULT_ITERATIONS);
+    
+    @Setup(Level.Trial)
+    public void prepare() {
+        byte[] data = new byte[4 * 1024 * 1024];
+        new Random(42).nextBytes(data);
+        content = ByteBuffer.allocateDirect(data.length);
+        content.put(data).flip();
+    }
+    
+    // PBKDF2 at the server's default cost
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String hashPassword() {
+        return passwordHasher.hash("correct horse battery staple");
+    }
+    
+    @Benchmark
+    public String hashPasswordLegacy() throws Exception {
+        return EncryptionUtil.hashPassword("correct horse battery staple");
+    }
+    
+    // Whole-file and per-chunk SHA-256 of a 4 MB upload
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String contentHash4MB() {
+        ContentHasher hasher = new ContentHasher();
+        hasher.update(content.duplicate());
+        return hasher.finish();
+    }
+}
@@ -0,0 +1,124 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TCP proxy on loopback that holds every byte back for a fixed one-way delay, so a connection
+ * through it sees a wide area round trip time. Each direction keeps at most a window of bytes in
+ * flight, like a TCP window, so one connection can't move more than window / RTT.
+ */
+final class DelayProxy implements AutoCloseable {
+    
+    private static final int SLICE = 64 * 1024;
+    
+    final int port;
+    private final ServerSocket listener;
+    private final int targetPort;
+    private final long delayNanos;
+    private final int windowSlices;
+    
+    // A slice of bytes and when it may go out; an empty one marks the end of the stream
+    private static final class Slice {
+        final byte[] data;
+        final long due;
+        
+        Slice(byte[] data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+    
+    DelayProxy(int targetPort, long delayMillis, int windowBytes) throws IOException {
+        this.targetPort = targetPort;
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.windowSlices = Math.max(1, windowBytes / SLICE);
+        listener = new ServerSocket(0);
+        port = listener.getLocalPort();
+        Thread acceptor = new Thread(this::acceptLoop, "delay-proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+    
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            try {
+                Socket client = listener.accept();
+                Socket server = new Socket("localhost", targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                pipe(client, server);
+                pipe(server, client);
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+    
+    // One direction: a reader stamps slices as they arrive, a writer sends each when it is due
+    private void pipe(Socket from, Socket to) {
+        BlockingQueue<Slice> inFlight = new ArrayBlockingQueue<>(windowSlices);
+        start(() -> {
+            byte[] buffer = new byte[SLICE];
+            try (InputStream in = from.getInputStream()) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    inFlight.put(new Slice(Arrays.copyOf(buffer, n), System.nanoTime() + delayNanos));
+                }
+            } catch (IOException | InterruptedException e) {
+                // The other side went away
+            }
+            try {
+                inFlight.put(new Slice(new byte[0], System.nanoTime() + delayNanos));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        start(() -> {
+            try (OutputStream out = to.getOutputStream()) {
+                while (true) {
+                    Slice slice = inFlight.take();
+                    long wait = slice.due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (slice.data.length == 0) {
+                        return;
+                    }
+                    out.write(slice.data);
+                }
+            } catch (IOException | InterruptedException e) {
+                // The other side went away
+            } finally {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        });
+    }
+    
+    private static void start(Runnable task) {
+        Thread thread = new Thread(task, "delay-proxy-pipe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        listener.close();
+    }
+}
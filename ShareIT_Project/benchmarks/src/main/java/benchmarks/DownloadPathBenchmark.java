@@ -0,0 +1,147 @@
+package benchmarks;
+
+import common.ChannelIO;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.IterationParams;
+
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file sent down a loopback socket the way downloads used to go out (8 KB reads into a heap array
+ * and writes through a DataOutputStream) and the way they go out now ({@link ChannelIO#sendFile},
+ * sendfile on Linux). Besides the time, reports the CPU the sending thread burns per GB, kernel time
+ * included; the file sits in the page cache, so this is the cost of moving the bytes and nothing else.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadPathBenchmark {
+    
+    private static final long FILE_BYTES = 256L * 1024 * 1024;
+    private static final double GB = 1024.0 * 1024 * 1024;
+    
+    @Param({"copy", "sendfile"})
+    public String path;
+    
+    Path dir;
+    Path file;
+    ServerSocketChannel listener;
+    SocketChannel socket;
+    DataOutputStream out;
+    FileChannel channel;
+    Thread drain;
+    // One permit for every whole file the other end has read
+    final Semaphore received = new Semaphore(0);
+    
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dir = Files.createTempDirectory("shareit-download");
+        file = dir.resolve("download.bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (FileChannel writer = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < FILE_BYTES; written += block.length) {
+                writer.write(ByteBuffer.wrap(block));
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        socket = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel client = listener.accept();
+        out = new DataOutputStream(socket.socket().getOutputStream());
+        drain = new Thread(() -> drain(client), "download-drain");
+        drain.setDaemon(true);
+        drain.start();
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        socket.close();
+        listener.close();
+        channel.close();
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    // The client: reads and drops everything, counting whole files
+    private void drain(SocketChannel client) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        long pending = 0;
+        try (client) {
+            int n;
+            while ((n = client.read(buffer)) >= 0) {
+                buffer.clear();
+                pending += n;
+                while (pending >= FILE_BYTES) {
+                    pending -= FILE_BYTES;
+                    received.release();
+                }
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+    
+    /**
+     * CPU time of the sending thread per GB sent, taken after each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuCost {
+        public double cpuMsPerGB;
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private long cpuNanos;
+        private long bytes;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuNanos = 0;
+            bytes = 0;
+        }
+        
+        // JMH adds event counts up over the iterations, so each iteration reports its share
+        @TearDown(Level.Iteration)
+        public void measure(IterationParams iteration) {
+            cpuMsPerGB = bytes == 0 ? 0 : cpuNanos / 1e6 / (bytes / GB) / iteration.getCount();
+        }
+    }
+    
+    // One op = the whole 256 MB file, until the other end has read it
+    @Benchmark
+    public void send256MB(CpuCost cost) throws Exception {
+        long cpuBefore = cost.threads.getCurrentThreadCpuTime();
+        if (path.equals("copy")) {
+            try (FileInputStream fis = new FileInputStream(file.toFile())) {
+                byte[] buffer = new byte[8192];
+                int bytesRead;
+                while ((bytesRead = fis.read(buffer)) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                }
+            }
+            out.flush();
+        } else {
+            ChannelIO.sendFile(channel, 0, FILE_BYTES, socket);
+        }
+        cost.cpuNanos += cost.threads.getCurrentThreadCpuTime() - cpuBefore;
+        cost.bytes += FILE_BYTES;
+        received.acquire();
+    }
+}
@@ -0,0 +1,120 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import security.ChunkedEncryption;
+import server.BlobStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing and reading 64 MB of content through the blob store, plaintext against AES-GCM at rest.
+ * The network is left out: content comes from memory and goes to a channel that discards it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptionBenchmark {
+    
+    private static final int CONTENT_BYTES = 64 * 1024 * 1024;
+    
+    @Param({"false", "true"})
+    public boolean encrypted;
+    
+    Path dir;
+    BlobStore store;
+    ByteBuffer content;
+    String hash;
+    
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        dir = Files.createTempDirectory("shareit-encryption");
+        store = new BlobStore(dir, encrypted ? ChunkedEncryption.fromKeyFile(dir.resolve("blob.key")) : null);
+        byte[] data = new byte[CONTENT_BYTES];
+        new Random(42).nextBytes(data);
+        content = ByteBuffer.allocateDirect(CONTENT_BYTES);
+        content.put(data).flip();
+        hash = store.ingest(new BufferChannel(content.duplicate()), CONTENT_BYTES);
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    // Hashing and writing (and encrypting) an upload; the content is already stored, so only the temp file is written
+    @Benchmark
+    public String store64MB() throws IOException {
+        return store.ingest(new BufferChannel(content.duplicate()), CONTENT_BYTES);
+    }
+    
+    // Reading (and decrypting and verifying) a whole download
+    @Benchmark
+    public long read64MB() throws IOException {
+        try (BlobStore.Content stored = store.open(hash)) {
+            Discard discard = new Discard();
+            stored.sendTo(0, stored.size(), discard);
+            return discard.bytes;
+        }
+    }
+    
+    private static class BufferChannel implements ReadableByteChannel {
+        private final ByteBuffer source;
+        
+        BufferChannel(ByteBuffer source) {
+            this.source = source;
+        }
+        
+        @Override
+        public int read(ByteBuffer target) {
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(source.remaining(), target.remaining());
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + n);
+            target.put(slice);
+            source.position(source.position() + n);
+            return n;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+    
+    private static class Discard implements WritableByteChannel {
+        long bytes;
+        
+        @Override
+        public int write(ByteBuffer source) {
+            int n = source.remaining();
+            source.position(source.limit());
+            bytes += n;
+            return n;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
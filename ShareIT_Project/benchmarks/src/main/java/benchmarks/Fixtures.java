@@ -0,0 +1,115 @@
+package benchmarks;
+
+import common.FileTransfer;
+import common.User;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic users and finished transfers for the in-process benchmarks.
+ */
+final class Fixtures {
+    
+    private static final String[] TYPES = {"txt", "pdf", "jpg", "zip", "mp4"};
+    
+    private Fixtures() {
+    }
+    
+    static List<User> users(int count) {
+        List<User> users = new ArrayList<>(count);
+        LocalDateTime registered = LocalDateTime.of(2024, 1, 1, 0, 0);
+        for (int i = 0; i < count; i++) {
+            users.add(new User("user" + i, "hash" + i, "user" + i + "@example.com", registered.plusSeconds(i), 100L * 1024 * 1024));
+        }
+        return users;
+    }
+    
+    // A quarter of the files are public, the rest go between random users
+    static List<FileTransfer> transfers(int count, int userCount) {
+        List<FileTransfer> transfers = new ArrayList<>(count);
+        forEachTransfer(count, userCount, transfers::add);
+        return transfers;
+    }
+    
+    // The same transfers one at a time, for callers that shouldn't hold them all
+    static void forEachTransfer(int count, int userCount, Consumer<FileTransfer> action) {
+        Random random = new Random(42);
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+        for (int i = 0; i < count; i++) {
+            String receiver = i % 4 == 0 ? "public" : "user" + random.nextInt(userCount);
+            FileTransfer transfer = new FileTransfer(new UUID(random.nextLong(), random.nextLong()).toString(),
+                    "file-" + i + "." + TYPES[i % TYPES.length], random.nextInt(10 * 1024 * 1024),
+                    "user" + random.nextInt(userCount), receiver, start.plusSeconds(i));
+            transfer.setContentHash(String.format("%064x", i));
+            transfer.setStatus("COMPLETED");
+            action.accept(transfer);
+        }
+    }
+    
+    // File content typical for a type: log lines, CSV rows and JSON records compress well, random
+    // bytes stand in for formats that are compressed already
+    static byte[] content(String type, int size) {
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder(size + 256);
+        while (text.length() < size) {
+            switch (type) {
+                case "log":
+                    text.append("2024-03-0").append(1 + random.nextInt(9)).append(" 12:").append(10 + random.nextInt(50))
+                            .append(':').append(10 + random.nextInt(50)).append(" INFO  [worker-").append(random.nextInt(16))
+                            .append("] Request ").append(random.nextInt(1_000_000)).append(" served in ")
+                            .append(random.nextInt(500)).append(" ms\n");
+                    break;
+                case "csv":
+                    text.append(random.nextInt(100_000)).append(",user").append(random.nextInt(1000)).append(',')
+                            .append(random.nextInt(10_000) / 100.0).append(",2024-03-").append(10 + random.nextInt(20))
+                            .append(',').append(TYPES[random.nextInt(TYPES.length)]).append('\n');
+                    break;
+                case "json":
+                    text.append("{\"id\":").append(random.nextInt(1_000_000)).append(",\"owner\":\"user")
+                            .append(random.nextInt(1000)).append("\",\"size\":").append(random.nextInt(1 << 24))
+                            .append(",\"public\":").append(random.nextBoolean()).append("}\n");
+                    break;
+                default:
+                    byte[] data = new byte[size];
+                    random.nextBytes(data);
+                    return data;
+            }
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+    
+    static final String KEY_STORE_PASSWORD = "changeit";
+    
+    // A PKCS12 key store with a self-signed certificate for localhost, made with the JDK's keytool
+    static Path selfSignedKeyStore(Path dir) throws IOException, InterruptedException {
+        Path keyStore = dir.resolve("server.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "shareit", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "san=dns:localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+                "-storepass", KEY_STORE_PASSWORD, "-keypass", KEY_STORE_PASSWORD)
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed");
+        }
+        return keyStore;
+    }
+    
+    static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
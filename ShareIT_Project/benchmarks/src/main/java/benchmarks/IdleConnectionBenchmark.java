@@ -0,0 +1,133 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.IterationParams;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server holding many logged in connections that sit idle, per connection engine: what they cost
+ * the server in threads and heap (after a full GC, scraped from its metrics), and the round trip of
+ * a small command on one more connection while they are held. On JDK 17 the virtual engine falls
+ * back to platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdleConnectionBenchmark {
+    
+    @Param({"thread", "virtual", "nio"})
+    public String engine;
+    
+    @Param({"1000", "10000"})
+    public int connections;
+    
+    LoopbackServer server;
+    int metricsPort;
+    final List<Socket> idle = new ArrayList<>();
+    
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        metricsPort = LoopbackServer.freePort();
+        // A cheap KDF and the verification cache, so logging everyone in doesn't dominate the setup
+        server = LoopbackServer.start("shareit.engine=" + engine, "shareit.metrics.port=" + metricsPort,
+                "shareit.password.iterations=10000", "shareit.password.cache=10000");
+        new Connection(server.port, "idle", null, true).close();
+        for (int i = 0; i < connections; i++) {
+            idle.add(login(server.port));
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void disconnect() throws Exception {
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        idle.clear();
+        server.close();
+    }
+    
+    // Like Connection, without its 128 KB of buffers per socket on this side
+    private static Socket login(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 256));
+        out.writeUTF("LOGIN");
+        out.writeUTF("idle");
+        out.writeUTF("password");
+        out.flush();
+        Connection.expectSuccess(new DataInputStream(socket.getInputStream()).readUTF());
+        return socket;
+    }
+    
+    /**
+     * The server's footprint while the idle connections are held, taken after each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public double serverThreads;
+        public double serverHeapMB;
+        
+        // JMH adds event counts up over the iterations, so each iteration reports its share
+        @TearDown(Level.Iteration)
+        public void measure(IdleConnectionBenchmark benchmark, IterationParams iteration) throws Exception {
+            benchmark.server.jcmd("GC.run");
+            String metrics;
+            try (InputStream in = new URL("http://127.0.0.1:" + benchmark.metricsPort + "/metrics").openStream()) {
+                metrics = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            serverThreads = (double) gauge(metrics, "shareit_jvm_threads") / iteration.getCount();
+            serverHeapMB = gauge(metrics, "shareit_jvm_heap_used_bytes") / (1024.0 * 1024) / iteration.getCount();
+        }
+        
+        private static long gauge(String metrics, String name) throws IOException {
+            for (String line : metrics.split("\n")) {
+                if (line.startsWith(name + " ")) {
+                    return Long.parseLong(line.substring(name.length() + 1));
+                }
+            }
+            throw new IOException("No " + name + " in the server's metrics");
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Client {
+        Connection connection;
+        
+        @Setup(Level.Trial)
+        public void connect(IdleConnectionBenchmark benchmark) throws IOException {
+            connection = new Connection(benchmark.server.port, "idle", null, false);
+        }
+        
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            connection.close();
+        }
+    }
+    
+    @Benchmark
+    public long getStats(Client client, Footprint footprint) throws IOException {
+        Connection c = client.connection;
+        c.out.writeUTF("GET_STATS");
+        c.out.flush();
+        c.in.readUTF();
+        c.in.readUTF();
+        long used = c.in.readLong();
+        c.in.readLong();
+        c.in.readInt();
+        return used + c.in.readInt();
+    }
+}
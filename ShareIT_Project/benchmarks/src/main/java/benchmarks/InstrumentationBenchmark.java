@@ -0,0 +1,52 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import server.AsyncLog;
+import server.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What logging and metrics cost a request thread, with 8 threads recording at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class InstrumentationBenchmark {
+    
+    Path dir;
+    AsyncLog log;
+    Metrics.Histogram histogram;
+    
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("shareit-log");
+        // Dropping keeps the benchmark measuring the caller rather than the disk
+        log = new AsyncLog(dir.resolve("server.log"), 8192, AsyncLog.Overflow.DROP, 64L * 1024 * 1024, 2, null);
+        histogram = new Metrics(Collections.singletonList("GET_STATS")).command("GET_STATS");
+    }
+    
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        log.close();
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    @Benchmark
+    public void logLine() {
+        log.log("File downloaded: report.pdf by user42");
+    }
+    
+    @Benchmark
+    public void recordLatency() {
+        histogram.record(123_456);
+    }
+}
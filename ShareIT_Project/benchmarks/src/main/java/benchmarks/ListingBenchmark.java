@@ -0,0 +1,70 @@
+package benchmarks;
+
+import common.FileTransfer;
+import org.openjdk.jmh.annotations.*;
+import server.FileIndex;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing from the file index at scale: one page in each sort order, pages filtered by type, sender
+ * or both, and the full list that the legacy LIST_FILES command builds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class ListingBenchmark {
+    
+    @Param({"10000", "100000", "1000000"})
+    public int files;
+    
+    FileIndex index;
+    
+    @Setup(Level.Trial)
+    public void buildIndex() {
+        index = new FileIndex();
+        for (FileTransfer transfer : Fixtures.transfers(files, 1000)) {
+            index.add(transfer);
+        }
+    }
+    
+    @Benchmark
+    public FileIndex.Page newestPage() {
+        return index.page("user7", FileIndex.SortKey.TIMESTAMP, true, "", 50, "", "", "");
+    }
+    
+    @Benchmark
+    public FileIndex.Page largestPage() {
+        return index.page("user7", FileIndex.SortKey.SIZE, true, "", 50, "", "", "");
+    }
+    
+    @Benchmark
+    public FileIndex.Page namePrefixPage() {
+        return index.page("user7", FileIndex.SortKey.NAME, false, "", 50, "", "", "file-123");
+    }
+    
+    // Every 5th file is a PDF and few are from user3; the type and sender indexes are intersected
+    @Benchmark
+    public FileIndex.Page filteredPage() {
+        return index.page("user7", FileIndex.SortKey.TIMESTAMP, true, "", 50, "PDF", "user3", "");
+    }
+    
+    @Benchmark
+    public FileIndex.Page typePage() {
+        return index.page("user7", FileIndex.SortKey.TIMESTAMP, true, "", 50, "PDF", "", "");
+    }
+    
+    @Benchmark
+    public FileIndex.Page senderPage() {
+        return index.page("user7", FileIndex.SortKey.SIZE, true, "", 50, "", "user3", "");
+    }
+    
+    @Benchmark
+    public List<FileTransfer> fullList() {
+        return index.visibleTo("user7");
+    }
+}
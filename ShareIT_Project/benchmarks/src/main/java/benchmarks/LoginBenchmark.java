@@ -0,0 +1,66 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LOGIN round trips from 4 connections at once at a few PBKDF2 costs, with the verification cache
+ * off (every login runs the KDF, as after a restart) and on (repeated logins of the same session).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class LoginBenchmark {
+    
+    @Param({"10000", "100000", "310000"})
+    public int iterations;
+    
+    @Param({"0", "10000"})
+    public int cache;
+    
+    LoopbackServer server;
+    
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        server = LoopbackServer.start("shareit.password.iterations=" + iterations, "shareit.password.cache=" + cache);
+        new Connection(server.port, "bench", null, true).close();
+    }
+    
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        server.close();
+    }
+    
+    @State(Scope.Thread)
+    public static class Client {
+        Connection connection;
+        
+        @Setup(Level.Trial)
+        public void connect(LoginBenchmark benchmark) throws IOException {
+            connection = new Connection(benchmark.server.port, "bench", null, false);
+        }
+        
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            connection.close();
+        }
+    }
+    
+    @Benchmark
+    public String login(Client client) throws IOException {
+        Connection c = client.connection;
+        c.out.writeUTF("LOGIN");
+        c.out.writeUTF("bench");
+        c.out.writeUTF("password");
+        c.out.flush();
+        String reply = c.in.readUTF();
+        Connection.expectSuccess(reply);
+        return reply;
+    }
+}
@@ -0,0 +1,110 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.stream.Stream;
+
+/**
+ * A ShareIT server in a child JVM with its own temporary working directory, so benchmarks measure
+ * the real protocol over loopback without touching the server's static state in the benchmark JVM.
+ */
+final class LoopbackServer implements AutoCloseable {
+    
+    final int port;
+    private final Path dir;
+    private final Process process;
+    
+    private LoopbackServer(int port, Path dir, Process process) {
+        this.port = port;
+        this.dir = dir;
+        this.process = process;
+    }
+    
+    // Extra system properties as "name=value"
+    static LoopbackServer start(String... properties) throws Exception {
+        return launch(Files.createTempDirectory("shareit-bench"), properties);
+    }
+    
+    // Starts from the metadata snapshot given, as if the server had written it before a restart
+    static LoopbackServer start(Path snapshot, String... properties) throws Exception {
+        Path dir = Files.createTempDirectory("shareit-bench");
+        Path journal = Files.createDirectories(dir.resolve("journal"));
+        // A link, so a large snapshot isn't copied for every start
+        Files.createLink(journal.resolve("snapshot-0000000000000000.dat"), snapshot);
+        return launch(dir, properties);
+    }
+    
+    private static LoopbackServer launch(Path dir, String... properties) throws Exception {
+        int port = freePort();
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        // The server runs in another directory, so relative class path entries have to be resolved here
+        StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(Path.of(entry).toAbsolutePath().toString());
+        }
+        command.add(classPath.toString());
+        command.add("-Dshareit.port=" + port);
+        command.add("-Dshareit.log.console=false");
+        for (String property : properties) {
+            command.add("-D" + property);
+        }
+        command.add("server.ShareITServer");
+        Process process = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectErrorStream(true).redirectOutput(dir.resolve("server.out").toFile()).start();
+        
+        LoopbackServer server = new LoopbackServer(port, dir, process);
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try (Socket socket = new Socket("localhost", port)) {
+                return server;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    String output = Files.readString(dir.resolve("server.out"));
+                    server.close();
+                    throw new IllegalStateException("Server did not start:\n" + output);
+                }
+                // Short, so startup benchmarks see when the port opens
+                Thread.sleep(10);
+            }
+        }
+    }
+    
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+    
+    long pid() {
+        return process.pid();
+    }
+    
+    // Runs a diagnostic command in the server JVM, e.g. "GC.run"
+    void jcmd(String command) throws IOException, InterruptedException {
+        Process jcmd = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "jcmd").toString(),
+                Long.toString(process.pid()), command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (jcmd.waitFor() != 0) {
+            throw new IOException("jcmd " + command + " failed");
+        }
+    }
+    
+    @Override
+    public void close() throws IOException, InterruptedException {
+        process.destroy();
+        process.waitFor();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package benchmarks;
+
+import common.FileTransfer;
+import common.User;
+import org.openjdk.jmh.annotations.*;
+import server.MetadataJournal;
+import server.MetadataSnapshot;
+import server.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metadata persistence: durable registrations through the journal (concurrent callers share an
+ * fsync), and the snapshot that startup reads, written in full and looked up one user at a time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class PersistenceBenchmark {
+    
+    @State(Scope.Benchmark)
+    public static class Journal {
+        Path dir;
+        MetadataJournal journal;
+        final AtomicLong registrations = new AtomicLong();
+        
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            dir = Files.createTempDirectory("shareit-journal");
+            // Large segments so no snapshot runs in the middle of a measurement
+            journal = new MetadataJournal(dir, Long.MAX_VALUE, Collections::emptyList, Collections::emptyList,
+                    new Metrics(Collections.emptyList()).journalWrites);
+            journal.recover(new MetadataJournal.Replay() {
+                @Override public void snapshot(MetadataSnapshot snapshot) { }
+                @Override public void user(User user, boolean withStorage) { }
+                @Override public void storage(String username, long storageUsed) { }
+                @Override public void transfer(FileTransfer transfer) { }
+                @Override public void delete(String fileId) { }
+            });
+        }
+        
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            journal.close();
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+    
+    @State(Scope.Benchmark)
+    public static class Snapshot {
+        @Param({"100000", "1000000"})
+        public int users;
+        
+        Path dir;
+        List<User> userList;
+        List<FileTransfer> transfers;
+        MetadataSnapshot snapshot;
+        int next;
+        
+        @Setup(Level.Trial)
+        public void write() throws IOException {
+            dir = Files.createTempDirectory("shareit-snapshot");
+            userList = Fixtures.users(users);
+            transfers = Fixtures.transfers(users, users);
+            MetadataSnapshot.write(dir.resolve("snapshot.dat"), userList, transfers);
+            snapshot = MetadataSnapshot.open(dir.resolve("snapshot.dat"));
+        }
+        
+        // The mappings of opened snapshots are only released when collected, and the kernel allows
+        // 65530 mappings per process
+        @Setup(Level.Iteration)
+        public void unmap() {
+            System.gc();
+        }
+        
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            Fixtures.deleteRecursively(dir);
+        }
+    }
+    
+    // What REGISTER does before replying, from 8 connections at once
+    @Benchmark
+    @Threads(8)
+    public void registerDurably(Journal state) throws IOException {
+        long n = state.registrations.incrementAndGet();
+        state.journal.logUser(new User("user" + n, "hash", "user" + n + "@example.com"));
+        state.journal.sync();
+    }
+    
+    // The first lookup of a user after startup
+    @Benchmark
+    public User snapshotFindUser(Snapshot state) {
+        state.next = (state.next + 7919) % state.users;
+        return state.snapshot.findUser("user" + state.next);
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5, batchSize = 1)
+    @Warmup(iterations = 2, batchSize = 1)
+    public void snapshotWrite(Snapshot state) throws IOException {
+        MetadataSnapshot.write(state.dir.resolve("rewrite.dat"), state.userList, state.transfers);
+    }
+    
+    // Startup cost before connections are accepted: opening the snapshot and its index
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    public MetadataSnapshot snapshotOpen(Snapshot state) throws IOException {
+        return MetadataSnapshot.open(state.dir.resolve("snapshot.dat"));
+    }
+}
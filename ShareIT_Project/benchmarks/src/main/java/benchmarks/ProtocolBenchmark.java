@@ -0,0 +1,153 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Whole commands against a server over loopback: a small command round trip (reading, parsing and
+ * dispatching the command), listings over a few thousand files, and 1 MB uploads and downloads, for
+ * each connection engine. On JDK 17 the virtual engine falls back to platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    
+    private static final int FILE_BYTES = 1024 * 1024;
+    
+    @Param({"thread", "virtual", "nio"})
+    public String engine;
+    
+    @Param({"2000"})
+    public int files;
+    
+    LoopbackServer server;
+    final AtomicInteger users = new AtomicInteger();
+    byte[] data;
+    String sharedFileId;
+    
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        server = LoopbackServer.start("shareit.engine=" + engine);
+        data = new byte[FILE_BYTES];
+        new Random(42).nextBytes(data);
+        
+        try (Connection owner = new Connection(server.port, "owner")) {
+            sharedFileId = owner.upload("shared.bin", data, "public");
+            // Small public files so every user has something to list
+            byte[] tiny = new byte[16];
+            for (int i = 0; i < files; i++) {
+                owner.out.writeUTF("UPLOAD");
+                owner.out.writeUTF("file-" + i + (i % 2 == 0 ? ".txt" : ".pdf"));
+                owner.out.writeLong(tiny.length);
+                owner.out.writeUTF("public");
+                owner.out.write(tiny);
+            }
+            owner.out.flush();
+            for (int i = 0; i < files; i++) {
+                Connection.expectSuccess(owner.in.readUTF());
+                owner.in.readUTF();
+            }
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        server.close();
+    }
+    
+    @State(Scope.Thread)
+    public static class Client {
+        Connection connection;
+        
+        @Setup(Level.Trial)
+        public void connect(ProtocolBenchmark benchmark) throws IOException {
+            connection = new Connection(benchmark.server.port, "bench" + benchmark.users.incrementAndGet());
+        }
+        
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            connection.close();
+        }
+    }
+    
+    @Benchmark
+    public long getStats(Client client) throws IOException {
+        Connection c = client.connection;
+        c.out.writeUTF("GET_STATS");
+        c.out.flush();
+        c.in.readUTF();
+        c.in.readUTF();
+        long used = c.in.readLong();
+        c.in.readLong();
+        c.in.readInt();
+        return used + c.in.readInt();
+    }
+    
+    @Benchmark
+    public int listFilesPage(Client client) throws IOException {
+        Connection c = client.connection;
+        c.out.writeUTF("LIST_FILES_PAGE");
+        c.out.writeUTF("TIMESTAMP");
+        c.out.writeBoolean(true);
+        c.out.writeUTF("");
+        c.out.writeInt(50);
+        c.out.writeUTF("");
+        c.out.writeUTF("");
+        c.out.writeUTF("");
+        c.out.flush();
+        Connection.expectSuccess(c.in.readUTF());
+        int count = c.in.readInt();
+        for (int i = 0; i < count; i++) {
+            c.readFileRow();
+        }
+        c.in.readUTF();
+        return count;
+    }
+    
+    @Benchmark
+    public int listFiles(Client client) throws IOException {
+        Connection c = client.connection;
+        c.out.writeUTF("LIST_FILES");
+        c.out.flush();
+        int count = c.in.readInt();
+        for (int i = 0; i < count; i++) {
+            c.readFileRow();
+        }
+        return count;
+    }
+    
+    // One op = 1 MB uploaded (and deleted again so the quota never runs out)
+    @Benchmark
+    public void upload1MB(Client client) throws IOException {
+        client.connection.delete(client.connection.upload("upload.bin", data, "public"));
+    }
+    
+    // One op = 1 MB downloaded
+    @Benchmark
+    public int download1MB(Client client) throws IOException {
+        Connection c = client.connection;
+        c.out.writeUTF("DOWNLOAD");
+        c.out.writeUTF(sharedFileId);
+        c.out.flush();
+        Connection.expectSuccess(c.in.readUTF());
+        c.in.readUTF();
+        long length = c.in.readLong();
+        byte[] buffer = new byte[64 * 1024];
+        for (long left = length; left > 0; ) {
+            int n = c.in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (n < 0) {
+                throw new IOException("Download cut short");
+            }
+            left -= n;
+        }
+        return (int) length;
+    }
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import common.User;
+import org.openjdk.jmh.annotations.*;
+import server.QuotaLedger;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Quota accounting from 8 threads at once: a full upload cycle (reserve, commit, free) and a
+ * reservation that is released again, with every thread on its own user or all on the same one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class QuotaBenchmark {
+    
+    @Param({"false", "true"})
+    public boolean sameUser;
+    
+    List<User> users;
+    QuotaLedger ledger;
+    final AtomicInteger threads = new AtomicInteger();
+    
+    @Setup(Level.Trial)
+    public void prepare() {
+        users = Fixtures.users(64);
+        // What the server does with a change, minus the journal
+        ledger = new QuotaLedger((user, delta) -> {
+            synchronized (user) {
+                user.setStorageUsed(user.getStorageUsed() + delta);
+            }
+        });
+    }
+    
+    @State(Scope.Thread)
+    public static class Uploader {
+        User user;
+        
+        @Setup(Level.Trial)
+        public void pickUser(QuotaBenchmark benchmark) {
+            user = benchmark.users.get(benchmark.sameUser ? 0 : benchmark.threads.getAndIncrement());
+        }
+    }
+    
+    @Benchmark
+    public void reserveCommitFree(Uploader uploader) {
+        QuotaLedger.Reservation reservation = ledger.reserve(uploader.user, 1024);
+        reservation.commit();
+        reservation.close();
+        ledger.free(uploader.user, 1024);
+    }
+    
+    @Benchmark
+    public void reserveRelease(Uploader uploader) {
+        ledger.reserve(uploader.user, 1024).close();
+    }
+}
@@ -0,0 +1,150 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import server.TransferScheduler;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What bandwidth shaping costs when it doesn't hold anything back: a single 256 KB grant from
+ * 4 threads sharing the global and one user's bucket, and a 16 MB download through the server with
+ * shaping off or on at a limit far above what loopback can do. At 10 Gbit/s a 256 KB quantum takes
+ * about 210 us on the wire, so a grant has to stay well below that.
+ *
+ * smallTransfers has 16 threads doing 256 KB transfers, all small enough for the priority lane,
+ * against a 64 MB/s global limit (when shaping): ops/s times 256 KB is what they get together, and
+ * an iteration fails if that goes over the limit by more than the bursts allow.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShapingBenchmark {
+    
+    private static final int FILE_BYTES = 16 * 1024 * 1024;
+    // 100 TB/s: enabled, but even back-to-back grants never wait
+    private static final long RATE = 100_000_000_000_000L;
+    private static final long SMALL_RATE = 64L * 1024 * 1024;
+    private static final long SMALL_BURST = 1024 * 1024;
+    
+    @Param({"false", "true"})
+    public boolean shaping;
+    
+    TransferScheduler.Flow flow;
+    LoopbackServer server;
+    String fileId;
+    
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        long rate = shaping ? RATE : 0;
+        flow = new TransferScheduler(rate, rate, 16 * 1024 * 1024, 0, 1, 1).open("bench", FILE_BYTES, false);
+        server = LoopbackServer.start("shareit.rate.global=" + rate, "shareit.rate.user=" + rate,
+                "shareit.rate.small.bytes=0");
+        byte[] data = new byte[FILE_BYTES];
+        new Random(42).nextBytes(data);
+        try (Connection owner = new Connection(server.port, "bench", null, true)) {
+            fileId = owner.upload("shaped.bin", data, "public");
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        server.close();
+    }
+    
+    @State(Scope.Thread)
+    public static class Client {
+        Connection connection;
+        
+        @Setup(Level.Trial)
+        public void connect(ShapingBenchmark benchmark) throws IOException {
+            connection = new Connection(benchmark.server.port, "bench", null, false);
+        }
+        
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            connection.close();
+        }
+    }
+    
+    /**
+     * A global limit shared by many small transfers, and the bytes it let through.
+     */
+    @State(Scope.Benchmark)
+    public static class SmallTransfers {
+        TransferScheduler scheduler;
+        final AtomicLong granted = new AtomicLong();
+        long startedAt;
+        
+        @Setup(Level.Trial)
+        public void prepare(ShapingBenchmark benchmark) {
+            scheduler = new TransferScheduler(benchmark.shaping ? SMALL_RATE : 0, 0, SMALL_BURST,
+                    4 * 1024 * 1024, 1, 1);
+        }
+        
+        @Setup(Level.Iteration)
+        public void start() {
+            granted.set(0);
+            startedAt = System.nanoTime();
+        }
+        
+        @TearDown(Level.Iteration)
+        public void check() {
+            if (!scheduler.isShaping()) {
+                return;
+            }
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            // Idle burst, the priority lane's extra burst, and one grant per thread already paid for
+            long allowed = (long) (SMALL_RATE * seconds) + 2 * SMALL_BURST + 16L * TransferScheduler.QUANTUM;
+            if (granted.get() > allowed) {
+                throw new IllegalStateException("Small transfers got " + granted.get() + " bytes in " + seconds
+                        + " s, over the global limit of " + SMALL_RATE + " bytes/s");
+            }
+        }
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Threads(4)
+    public void grant() throws IOException {
+        flow.acquire(TransferScheduler.QUANTUM);
+    }
+    
+    // One op = one 256 KB transfer by its own user
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(16)
+    public void smallTransfers(SmallTransfers small) throws IOException {
+        small.scheduler.open("user" + Thread.currentThread().getId(), TransferScheduler.QUANTUM, false)
+                .acquire(TransferScheduler.QUANTUM);
+        small.granted.addAndGet(TransferScheduler.QUANTUM);
+    }
+    
+    // One op = 16 MB downloaded
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long download16MB(Client client) throws IOException {
+        Connection c = client.connection;
+        c.out.writeUTF("DOWNLOAD");
+        c.out.writeUTF(fileId);
+        c.out.flush();
+        Connection.expectSuccess(c.in.readUTF());
+        c.in.readUTF();
+        long length = c.in.readLong();
+        byte[] buffer = new byte[64 * 1024];
+        for (long left = length; left > 0; ) {
+            int n = c.in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (n < 0) {
+                throw new IOException("Download cut short");
+            }
+            left -= n;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,93 @@
+package benchmarks;
+
+import common.FileTransfer;
+import common.User;
+import org.openjdk.jmh.annotations.*;
+import security.PasswordHasher;
+import server.MetadataSnapshot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server restart on top of a metadata snapshot of as many users as files, end to end in a new
+ * JVM: until the first login is answered (users are found in the snapshot on demand), and until the
+ * first page of files, which waits for the files to load in the background. With one user it is
+ * the JVM's own startup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, batchSize = 1)
+@Measurement(iterations = 5, batchSize = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class StartupBenchmark {
+    
+    private static final int PASSWORD_ITERATIONS = 1000;
+    
+    @Param({"1", "100000", "1000000"})
+    public int users;
+    
+    Path dir;
+    Path snapshot;
+    String username;
+    LoopbackServer server;
+    
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        dir = Files.createTempDirectory("shareit-startup");
+        snapshot = dir.resolve("snapshot.dat");
+        List<User> userList = Fixtures.users(users);
+        // The one who logs in, last in the snapshot and with a real password
+        username = "user" + (users - 1);
+        userList.set(users - 1, new User(username, new PasswordHasher(PASSWORD_ITERATIONS).hash("password"),
+                username + "@example.com"));
+        List<FileTransfer> transfers = Fixtures.transfers(users, users);
+        MetadataSnapshot.write(snapshot, userList, transfers);
+    }
+    
+    @TearDown(Level.Iteration)
+    public void stop() throws Exception {
+        server.close();
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    private Connection startAndLogin() throws Exception {
+        server = LoopbackServer.start(snapshot, "shareit.password.iterations=" + PASSWORD_ITERATIONS);
+        return new Connection(server.port, username, null, false);
+    }
+    
+    @Benchmark
+    public void firstLogin() throws Exception {
+        startAndLogin().close();
+    }
+    
+    @Benchmark
+    public int firstPage() throws Exception {
+        try (Connection c = startAndLogin()) {
+            c.out.writeUTF("LIST_FILES_PAGE");
+            c.out.writeUTF("TIMESTAMP");
+            c.out.writeBoolean(true);
+            c.out.writeUTF("");
+            c.out.writeInt(50);
+            c.out.writeUTF("");
+            c.out.writeUTF("");
+            c.out.writeUTF("");
+            c.out.flush();
+            Connection.expectSuccess(c.in.readUTF());
+            int count = c.in.readInt();
+            for (int i = 0; i < count; i++) {
+                c.readFileRow();
+            }
+            c.in.readUTF();
+            return count;
+        }
+    }
+}
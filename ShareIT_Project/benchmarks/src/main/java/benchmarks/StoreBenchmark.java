@@ -0,0 +1,82 @@
+package benchmarks;
+
+import common.FileTransfer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import server.MappedTransferStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap against memory-mapped transfer storage: reading the fields a listing row needs, and copying
+ * a finished transfer into the mapped store. The heap saving and GC cost at millions of transfers
+ * are in {@link StoreFootprintBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class StoreBenchmark {
+    
+    private static final int TRANSFERS = 100_000;
+    
+    Path dir;
+    List<FileTransfer> heap;
+    List<FileTransfer> mapped;
+    MappedTransferStore store;
+    int next;
+    
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        dir = Files.createTempDirectory("shareit-store");
+        heap = Fixtures.transfers(TRANSFERS, 1000);
+        store = new MappedTransferStore(dir.resolve("transfers.map"));
+        mapped = new ArrayList<>(TRANSFERS);
+        for (FileTransfer transfer : heap) {
+            mapped.add(store.store(transfer));
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    @Benchmark
+    public void readRowHeap(Blackhole blackhole) {
+        readRow(heap.get(nextIndex()), blackhole);
+    }
+    
+    @Benchmark
+    public void readRowMapped(Blackhole blackhole) {
+        readRow(mapped.get(nextIndex()), blackhole);
+    }
+    
+    // Grows the store by one record per call, like a finishing upload
+    @Benchmark
+    public FileTransfer storeMapped() {
+        return store.store(heap.get(nextIndex()));
+    }
+    
+    private int nextIndex() {
+        next = (next + 7919) % TRANSFERS;
+        return next;
+    }
+    
+    private static void readRow(FileTransfer transfer, Blackhole blackhole) {
+        blackhole.consume(transfer.getFileId());
+        blackhole.consume(transfer.getFileName());
+        blackhole.consume(transfer.getSender());
+        blackhole.consume(transfer.getReceiver());
+        blackhole.consume(transfer.getFileSize());
+        blackhole.consume(transfer.getFileType());
+        blackhole.consume(transfer.getTimestamp());
+    }
+}
@@ -0,0 +1,99 @@
+package benchmarks;
+
+import common.FileTransfer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.IterationParams;
+import server.MappedTransferStore;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Millions of finished transfers held on the heap or in the mapped store: the live heap they take
+ * and the full GC that has to trace them, and a listing row read from them. Run with -prof gc to see
+ * what the mapped getters allocate per row.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class StoreFootprintBenchmark {
+    
+    @Param({"heap", "mapped"})
+    public String storage;
+    
+    @Param({"1000000", "2000000"})
+    public int transfers;
+    
+    Path dir;
+    MappedTransferStore store;
+    List<FileTransfer> live;
+    int next;
+    
+    @Setup(Level.Trial)
+    public void fill() throws IOException {
+        dir = Files.createTempDirectory("shareit-footprint");
+        live = new ArrayList<>(transfers);
+        if (storage.equals("mapped")) {
+            store = new MappedTransferStore(dir.resolve("transfers.map"));
+            // Stored as they are made, so the heap copies never pile up
+            Fixtures.forEachTransfer(transfers, 1000, transfer -> live.add(store.store(transfer)));
+        } else {
+            Fixtures.forEachTransfer(transfers, 1000, live::add);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        live = null;
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    /**
+     * The heap in use right after a full GC, taken after each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class LiveHeap {
+        public double liveHeapMB;
+        
+        // JMH adds event counts up over the iterations, so each iteration reports its share
+        @TearDown(Level.Iteration)
+        public void measure(IterationParams iteration) {
+            System.gc();
+            long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            liveHeapMB = used / (1024.0 * 1024) / iteration.getCount();
+        }
+    }
+    
+    // One op = a full collection with all the transfers live
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public void fullGc(LiveHeap heap) {
+        System.gc();
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public void readRow(Blackhole blackhole) {
+        next = (next + 7919) % transfers;
+        FileTransfer transfer = live.get(next);
+        blackhole.consume(transfer.getFileId());
+        blackhole.consume(transfer.getFileName());
+        blackhole.consume(transfer.getSender());
+        blackhole.consume(transfer.getReceiver());
+        blackhole.consume(transfer.getFileSize());
+        blackhole.consume(transfer.getFileType());
+        blackhole.consume(transfer.getTimestamp());
+    }
+}
@@ -0,0 +1,174 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A 64 MB upload and download through a {@link DelayProxy}, over one connection or spread over
+ * several as the client does with -Dshareit.streams=N: the main connection plus attached ones, each
+ * taking 1 MB chunks from a shared queue and waiting for every chunk's answer before the next.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, batchSize = 1)
+@Measurement(iterations = 5, batchSize = 1)
+@Fork(1)
+public class StreamsBenchmark {
+    
+    private static final int FILE_BYTES = 64 * 1024 * 1024;
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    // Enough for 400 MB/s at a 10 ms round trip
+    private static final int WINDOW_BYTES = 4 * 1024 * 1024;
+    
+    @Param({"1", "4"})
+    public int streams;
+    
+    // One way, so the round trip is twice this
+    @Param({"0", "5", "25"})
+    public int delayMillis;
+    
+    LoopbackServer server;
+    DelayProxy proxy;
+    byte[] data;
+    String sharedFileId;
+    ExecutorService pool;
+    List<Connection> connections;
+    
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        server = LoopbackServer.start();
+        proxy = new DelayProxy(server.port, delayMillis, WINDOW_BYTES);
+        data = new byte[FILE_BYTES];
+        new Random(42).nextBytes(data);
+        try (Connection owner = new Connection(server.port, "owner")) {
+            sharedFileId = owner.upload("shared.bin", data, "public");
+        }
+        // Different content for the uploads, so they aren't deduplicated against the shared file
+        data[0] ^= 1;
+        
+        new Connection(server.port, "bench").close();
+        connections = new ArrayList<>();
+        connections.add(new Connection(proxy.port, "bench", null, false));
+        for (int i = 1; i < streams; i++) {
+            connections.add(attach(proxy.port));
+        }
+        pool = Executors.newFixedThreadPool(streams);
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        pool.shutdownNow();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        proxy.close();
+        server.close();
+    }
+    
+    // An extra connection for the same session, as the client's attachStream
+    private static Connection attach(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out.writeUTF("ATTACH");
+        out.writeUTF("bench");
+        out.writeUTF("password");
+        out.flush();
+        Connection.expectSuccess(in.readUTF());
+        return new Connection(socket, in, out);
+    }
+    
+    private interface ChunkTask {
+        void transfer(Connection connection, long offset) throws IOException;
+    }
+    
+    // Every connection takes chunks off the queue until it is empty
+    private void runParallel(ChunkTask task) throws Exception {
+        Queue<Long> offsets = new ConcurrentLinkedQueue<>();
+        for (long offset = 0; offset < FILE_BYTES; offset += CHUNK_BYTES) {
+            offsets.add(offset);
+        }
+        List<Future<?>> workers = new ArrayList<>();
+        for (Connection connection : connections) {
+            workers.add(pool.submit(() -> {
+                Long offset;
+                while ((offset = offsets.poll()) != null) {
+                    task.transfer(connection, offset);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+    }
+    
+    // One op = 64 MB uploaded in chunks, then deleted so the quota never runs out
+    @Benchmark
+    public String upload64MB() throws Exception {
+        Connection main = connections.get(0);
+        main.out.writeUTF("UPLOAD_INIT");
+        main.out.writeUTF("upload.bin");
+        main.out.writeLong(FILE_BYTES);
+        main.out.writeUTF("public");
+        main.out.writeInt(CHUNK_BYTES);
+        main.out.flush();
+        Connection.expectSuccess(main.in.readUTF());
+        String fileId = main.in.readUTF();
+        main.in.readInt();
+        
+        runParallel((c, offset) -> {
+            c.out.writeUTF("UPLOAD_CHUNK");
+            c.out.writeUTF(fileId);
+            c.out.writeLong(offset);
+            c.out.writeInt(CHUNK_BYTES);
+            c.out.write(data, (int) (long) offset, CHUNK_BYTES);
+            c.out.flush();
+            Connection.expectSuccess(c.in.readUTF());
+            c.in.readLong();
+        });
+        
+        main.out.writeUTF("UPLOAD_COMPLETE");
+        main.out.writeUTF(fileId);
+        main.out.flush();
+        Connection.expectSuccess(main.in.readUTF());
+        main.in.readUTF();
+        main.delete(fileId);
+        return fileId;
+    }
+    
+    // One op = 64 MB downloaded in ranges
+    @Benchmark
+    public void download64MB() throws Exception {
+        runParallel((c, offset) -> {
+            c.out.writeUTF("DOWNLOAD_RANGE");
+            c.out.writeUTF(sharedFileId);
+            c.out.writeLong(offset);
+            c.out.writeLong(CHUNK_BYTES);
+            c.out.flush();
+            Connection.expectSuccess(c.in.readUTF());
+            c.in.readUTF();
+            c.in.readLong();
+            int length = (int) c.in.readLong();
+            byte[] chunk = new byte[length];
+            c.in.readFully(chunk);
+        });
+    }
+}
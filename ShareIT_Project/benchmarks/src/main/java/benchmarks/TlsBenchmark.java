@@ -0,0 +1,132 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import security.TlsContexts;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same server with and without TLS: connection setup (connect, handshake, LOGIN) with and
+ * without session resumption, and 1 MB transfers over an established connection.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    
+    private static final int FILE_BYTES = 1024 * 1024;
+    
+    @Param({"thread", "nio"})
+    public String engine;
+    
+    @Param({"false", "true"})
+    public boolean tls;
+    
+    Path keyDir;
+    LoopbackServer server;
+    // One context for the whole run, like the client, so sessions can be resumed
+    SSLContext clientContext;
+    byte[] data;
+    String sharedFileId;
+    
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        if (tls) {
+            keyDir = Files.createTempDirectory("shareit-tls");
+            Path keyStore = Fixtures.selfSignedKeyStore(keyDir);
+            server = LoopbackServer.start("shareit.engine=" + engine, "shareit.tls.keystore=" + keyStore,
+                    "shareit.tls.keystore.password=" + Fixtures.KEY_STORE_PASSWORD);
+            clientContext = TlsContexts.client(keyStore, Fixtures.KEY_STORE_PASSWORD.toCharArray());
+        } else {
+            server = LoopbackServer.start("shareit.engine=" + engine);
+        }
+        data = new byte[FILE_BYTES];
+        new Random(42).nextBytes(data);
+        try (Connection owner = new Connection(server.port, "owner", clientContext, true)) {
+            sharedFileId = owner.upload("shared.bin", data, "public");
+        }
+        new Connection(server.port, "bench", clientContext, true).close();
+    }
+    
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        server.close();
+        if (keyDir != null) {
+            Fixtures.deleteRecursively(keyDir);
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Client {
+        Connection connection;
+        
+        @Setup(Level.Trial)
+        public void connect(TlsBenchmark benchmark) throws IOException {
+            connection = new Connection(benchmark.server.port, "bench", benchmark.clientContext, false);
+        }
+        
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            connection.close();
+        }
+    }
+    
+    // New connection and LOGIN; with TLS the session from the previous connection is resumed
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void connect() throws IOException {
+        new Connection(server.port, "bench", clientContext, false).close();
+    }
+    
+    // Same, but every TLS connection does a full handshake
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void connectFullHandshake() throws IOException {
+        Connection connection = new Connection(server.port, "bench", clientContext, false);
+        if (tls) {
+            // Drops it from the client's session cache
+            ((SSLSocket) connection.socket()).getSession().invalidate();
+        }
+        connection.close();
+    }
+    
+    // One op = 1 MB uploaded and deleted again
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void upload1MB(Client client) throws IOException {
+        client.connection.delete(client.connection.upload("upload.bin", data, "public"));
+    }
+    
+    // One op = 1 MB downloaded
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int download1MB(Client client) throws IOException {
+        Connection c = client.connection;
+        c.out.writeUTF("DOWNLOAD");
+        c.out.writeUTF(sharedFileId);
+        c.out.flush();
+        Connection.expectSuccess(c.in.readUTF());
+        c.in.readUTF();
+        long length = c.in.readLong();
+        byte[] buffer = new byte[64 * 1024];
+        for (long left = length; left > 0; ) {
+            int n = c.in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (n < 0) {
+                throw new IOException("Download cut short");
+            }
+            left -= n;
+        }
+        return (int) length;
+    }
+}
@@ -0,0 +1,154 @@
+package benchmarks;
+
+import common.ChannelIO;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.IterationParams;
+import server.BlobStore;
+
+import java.io.DataInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An upload body read off a loopback socket onto disk, from 1 MB to 4 GB: the old 8 KB loop from a
+ * DataInputStream into a FileOutputStream, {@link ChannelIO#receiveFile} (transferFrom, as chunks
+ * are written), and {@link BlobStore#ingest}, which whole uploads go through and which hashes the
+ * bytes on their way in. Besides the time, reports the throughput in MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadPathBenchmark {
+    
+    private static final double MB = 1024.0 * 1024;
+    
+    @Param({"copy", "transferFrom", "blobStore"})
+    public String path;
+    
+    @Param({"1", "64", "1024", "4096"})
+    public int sizeMB;
+    
+    long size;
+    Path dir;
+    Path target;
+    BlobStore store;
+    ServerSocketChannel listener;
+    SocketChannel socket;
+    DataInputStream in;
+    // Sizes the client is asked to send, one per op
+    final BlockingQueue<Long> requests = new LinkedBlockingQueue<>();
+    
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        size = sizeMB * 1024L * 1024;
+        dir = Files.createTempDirectory("shareit-upload");
+        target = dir.resolve("upload.bin");
+        store = new BlobStore(dir.resolve("store"));
+        
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+        socket = listener.accept();
+        in = new DataInputStream(socket.socket().getInputStream());
+        Thread sender = new Thread(() -> send(client), "upload-client");
+        sender.setDaemon(true);
+        sender.start();
+    }
+    
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        socket.close();
+        listener.close();
+        Fixtures.deleteRecursively(dir);
+    }
+    
+    // The client: sends as many bytes as asked, the same random 1 MB over and over
+    private void send(SocketChannel client) {
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(block.length);
+        buffer.put(block);
+        try (client) {
+            while (true) {
+                long remaining = requests.take();
+                while (remaining > 0) {
+                    buffer.clear();
+                    if (remaining < buffer.capacity()) {
+                        buffer.limit((int) remaining);
+                    }
+                    while (buffer.hasRemaining()) {
+                        remaining -= client.write(buffer);
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closed
+        }
+    }
+    
+    /**
+     * Bytes received per second of op time, taken after each iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Throughput {
+        public double mbPerSecond;
+        private long nanos;
+        private long bytes;
+        
+        @Setup(Level.Iteration)
+        public void reset() {
+            nanos = 0;
+            bytes = 0;
+        }
+        
+        // JMH adds event counts up over the iterations, so each iteration reports its share
+        @TearDown(Level.Iteration)
+        public void measure(IterationParams iteration) {
+            mbPerSecond = nanos == 0 ? 0 : bytes / MB / (nanos / 1e9) / iteration.getCount();
+        }
+    }
+    
+    // One op = one upload body of sizeMB, written to the file (not synced) when it returns
+    @Benchmark
+    public void receive(Throughput throughput) throws Exception {
+        long start = System.nanoTime();
+        requests.put(size);
+        if (path.equals("copy")) {
+            try (FileOutputStream fos = new FileOutputStream(target.toFile())) {
+                byte[] buffer = new byte[8192];
+                long totalRead = 0;
+                int bytesRead;
+                
+                while (totalRead < size && (bytesRead = in.read(buffer)) != -1) {
+                    fos.write(buffer, 0, bytesRead);
+                    totalRead += bytesRead;
+                }
+            }
+        } else if (path.equals("transferFrom")) {
+            try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ChannelIO.receiveFile(socket, file, 0, size);
+            }
+        } else {
+            // Released right away, so every op stores the content afresh
+            store.release(store.ingest(socket, size));
+        }
+        throughput.nanos += System.nanoTime() - start;
+        throughput.bytes += size;
+    }
+}
@@ -1,9 +1,15 @@
 package client;
 
+import common.ContentHasher;
 import common.FileTransfer;
+import common.TransferCompression;
 import common.User;
 import security.EncryptionUtil;
+import security.TlsContexts;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.table.DefaultTableModel;
@@ -12,19 +18,62 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 public class ShareITClient extends JFrame {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8080;
+    private static final int CHUNK_SIZE = ContentHasher.CHUNK_SIZE;
+    private static final int MAX_RETRIES = 5;
+    // A busy server answers "RETRY_AFTER <seconds>: <reason>"; it is asked again this many times at most
+    private static final int MAX_BUSY_RETRIES = 12;
+    private static final int FILES_PAGE_SIZE = 200;
+    // Opt-in parallel streams for large files, e.g. -Dshareit.streams=4
+    private static final int STREAMS = Integer.getInteger("shareit.streams", 1);
+    private static final long PARALLEL_THRESHOLD = Long.getLong("shareit.parallel.threshold", 64L * 1024 * 1024);
+    // TLS for servers started with a key store: -Dshareit.tls=true, plus a trust store for self-signed certificates
+    private static final boolean TLS = Boolean.getBoolean("shareit.tls");
+    private static final String TLS_TRUST_STORE = System.getProperty("shareit.tls.truststore");
+    private static final String TLS_TRUST_STORE_PASSWORD = System.getProperty("shareit.tls.truststore.password", "");
+    // Compress file data on the wire when the server takes it, -Dshareit.compression=false to turn off
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("shareit.compression", "true"));
+    private static final TransferCompression compression = new TransferCompression(
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "compressor");
+                thread.setDaemon(true);
+                return thread;
+            }), Deflater.BEST_SPEED, 4);
+    // One context for all connections, so the event and transfer connections resume the login's TLS session
+    private static SSLContext tlsContext;
     
     private Socket socket;
     private DataInputStream dis;
     private DataOutputStream dos;
     
     private User currentUser;
+    // Kept for the session so a dropped transfer can reconnect and resume
+    private String sessionUsername, sessionPassword;
+    // Codec agreed with the server, NONE if it has none in common with us; null until asked
+    private volatile String serverCodec;
+    // Unfinished uploads by local path, resumed when the same file is uploaded again
+    private final Map<String, String> pendingUploads = new ConcurrentHashMap<>();
     private JPanel mainPanel;
     private CardLayout cardLayout;
     
@@ -34,6 +83,15 @@ public class ShareITClient extends JFrame {
     private JTable filesTable, usersTable;
     private JLabel welcomeLabel, statsLabel;
     private JProgressBar progressBar;
+    private JComboBox<String> sortBox;
+    private JTextField nameFilter;
+    private JButton moreBtn;
+    private String filesCursor = "";
+    private long changeVersion = -1;
+    private String statsStorage = "";
+    private int statsFiles;
+    // Second connection the server pushes changes over while logged in
+    private volatile Socket eventSocket;
     
     public ShareITClient() {
         initializeUI();
@@ -48,7 +106,7 @@ public class ShareITClient extends JFrame {
         
         // Set modern look and feel
         try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeel());
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -210,6 +268,17 @@ public class ShareITClient extends JFrame {
         toolbar.add(deleteBtn);
         toolbar.add(refreshBtn);
         
+        // File listing controls: sort order, name filter and paging
+        sortBox = new JComboBox<>(new String[]{"Newest", "Oldest", "Largest", "Name"});
+        nameFilter = new JTextField(12);
+        moreBtn = new JButton("More");
+        moreBtn.setEnabled(false);
+        toolbar.add(new JLabel("Sort:"));
+        toolbar.add(sortBox);
+        toolbar.add(new JLabel("Name starts with:"));
+        toolbar.add(nameFilter);
+        toolbar.add(moreBtn);
+        
         // Progress bar
         progressBar = new JProgressBar();
         progressBar.setVisible(false);
@@ -233,11 +302,18 @@ public class ShareITClient extends JFrame {
         tabbedPane.addTab("📁 Files", filesScroll);
         tabbedPane.addTab("👥 Users", usersScroll);
         
-        panel.add(headerPanel, BorderLayout.NORTH);
-        panel.add(statsPanel, BorderLayout.CENTER);
-        panel.add(toolbar, BorderLayout.SOUTH);
+        // Each BorderLayout slot holds one component, so header/stats and toolbar/progress share a panel
+        JPanel topPanel = new JPanel(new BorderLayout());
+        topPanel.add(headerPanel, BorderLayout.NORTH);
+        topPanel.add(statsPanel, BorderLayout.SOUTH);
+        
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(toolbar, BorderLayout.NORTH);
+        bottomPanel.add(progressBar, BorderLayout.SOUTH);
+        
+        panel.add(topPanel, BorderLayout.NORTH);
         panel.add(tabbedPane, BorderLayout.CENTER);
-        panel.add(progressBar, BorderLayout.SOUTH);
+        panel.add(bottomPanel, BorderLayout.SOUTH);
         
         // Action listeners
         logoutBtn.addActionListener(e -> logout());
@@ -245,16 +321,16 @@ public class ShareITClient extends JFrame {
         downloadBtn.addActionListener(e -> downloadFile());
         deleteBtn.addActionListener(e -> deleteFile());
         refreshBtn.addActionListener(e -> refreshData());
+        sortBox.addActionListener(e -> refreshFiles());
+        nameFilter.addActionListener(e -> refreshFiles());
+        moreBtn.addActionListener(e -> loadFilesPage());
         
         mainPanel.add(panel, "DASHBOARD");
     }
     
     private void connectToServer() {
         try {
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
-            dis = new DataInputStream(socket.getInputStream());
-            dos = new DataOutputStream(socket.getOutputStream());
-            System.out.println("Connected to ShareIT server");
+            openConnection();
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Cannot connect to server: " + e.getMessage(), 
                 "Connection Error", JOptionPane.ERROR_MESSAGE);
@@ -262,6 +338,114 @@ public class ShareITClient extends JFrame {
         }
     }
     
+    private void openConnection() throws IOException {
+        socket = openSocket();
+        dis = new DataInputStream(socket.getInputStream());
+        dos = new DataOutputStream(socket.getOutputStream());
+    }
+    
+    private static Socket openSocket() throws IOException {
+        Socket socket;
+        if (TLS) {
+            SSLSocket tlsSocket = (SSLSocket) tlsContext().getSocketFactory().createSocket(SERVER_HOST, SERVER_PORT);
+            // Check that the certificate is for the host we meant to reach
+            SSLParameters parameters = tlsSocket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            tlsSocket.setSSLParameters(parameters);
+            socket = tlsSocket;
+        } else {
+            socket = new Socket(SERVER_HOST, SERVER_PORT);
+        }
+        // Requests are several small writes; don't let Nagle hold them back
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+    
+    private static synchronized SSLContext tlsContext() throws IOException {
+        if (tlsContext == null) {
+            tlsContext = TlsContexts.client(TLS_TRUST_STORE != null ? Paths.get(TLS_TRUST_STORE) : null,
+                    TLS_TRUST_STORE_PASSWORD.toCharArray());
+        }
+        return tlsContext;
+    }
+    
+    // Replaces a broken connection and logs back in with the session credentials
+    private void reconnect() throws IOException {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+        openConnection();
+        
+        dos.writeUTF("LOGIN");
+        dos.writeUTF(sessionUsername);
+        dos.writeUTF(sessionPassword);
+        
+        String response = dis.readUTF();
+        if (!response.startsWith("SUCCESS")) {
+            throw new IOException("Re-login failed: " + response);
+        }
+    }
+    
+    // Asks the server once which codecs it takes; servers from before compression answer with an error
+    private String serverCodec() throws IOException {
+        if (serverCodec == null) {
+            String codec = TransferCompression.NONE;
+            if (COMPRESSION) {
+                dos.writeUTF("CODECS");
+                if (dis.readUTF().startsWith("SUCCESS")) {
+                    List<String> codecs = new ArrayList<>();
+                    for (int count = dis.readInt(); count > 0; count--) {
+                        codecs.add(dis.readUTF());
+                    }
+                    codec = TransferCompression.choose(codecs);
+                }
+            }
+            serverCodec = codec;
+        }
+        return serverCodec;
+    }
+    
+    // Waits a little longer after every failed attempt before reconnecting
+    private void retryAfterFailure(int attempt, IOException failure) throws IOException {
+        if (attempt > MAX_RETRIES || sessionUsername == null) {
+            throw failure;
+        }
+        try {
+            Thread.sleep(500L * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+        try {
+            reconnect();
+        } catch (IOException e) {
+            // Next attempt tries again
+        }
+    }
+    
+    // Sleeps as long as a "RETRY_AFTER" response asks and returns true, or returns false for any other response
+    private static boolean waitIfBusy(String response, int attempt) throws InterruptedIOException {
+        if (!response.startsWith("RETRY_AFTER ") || attempt > MAX_BUSY_RETRIES) {
+            return false;
+        }
+        int end = response.indexOf(':');
+        long seconds;
+        try {
+            seconds = Long.parseLong(response.substring("RETRY_AFTER ".length(), end < 0 ? response.length() : end));
+        } catch (NumberFormatException e) {
+            seconds = 1;
+        }
+        try {
+            Thread.sleep(Math.min(Math.max(seconds, 1), 60) * 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server");
+        }
+        return true;
+    }
+    
     private void login() {
         try {
             String username = loginUsername.getText();
@@ -278,7 +462,10 @@ public class ShareITClient extends JFrame {
             
             String response = dis.readUTF();
             if (response.startsWith("SUCCESS")) {
+                sessionUsername = username;
+                sessionPassword = password;
                 showDashboard();
+                subscribe();
                 loadUserData();
             } else {
                 JOptionPane.showMessageDialog(this, response.substring(6));
@@ -328,37 +515,200 @@ public class ShareITClient extends JFrame {
         cardLayout.show(mainPanel, "REGISTER");
     }
     
+    // Opens the event stream; changes pushed from now on are applied without polling
+    private void subscribe() {
+        try {
+            Socket events = openSocket();
+            DataOutputStream out = new DataOutputStream(events.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(events.getInputStream()));
+            out.writeUTF("SUBSCRIBE");
+            out.writeUTF(sessionUsername);
+            out.writeUTF(sessionPassword);
+            
+            String response = in.readUTF();
+            if (!response.startsWith("SUCCESS")) {
+                events.close();
+                return;
+            }
+            eventSocket = events;
+            Thread listener = new Thread(() -> listenForEvents(events, in), "event-listener");
+            listener.setDaemon(true);
+            listener.start();
+        } catch (IOException e) {
+            // No push updates, the refresh button still works
+            System.err.println("Event stream unavailable: " + e.getMessage());
+        }
+    }
+    
+    private void listenForEvents(Socket events, DataInputStream in) {
+        try {
+            while (true) {
+                String frame = in.readUTF();
+                if (frame.equals("RESYNC")) {
+                    // Events were dropped while we were slow, catch up from our version
+                    SwingUtilities.invokeLater(this::refreshData);
+                    continue;
+                }
+                long version = in.readLong();
+                String type = in.readUTF();
+                Object change = readChange(in, type);
+                SwingUtilities.invokeLater(() -> {
+                    // Skip what a CHANGES_SINCE reply already applied
+                    if (events == eventSocket && version > changeVersion) {
+                        changeVersion = version;
+                        applyChange(type, change);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (events == eventSocket) {
+                System.err.println("Event stream closed: " + e.getMessage());
+            }
+        }
+    }
+    
     private void loadUserData() {
+        try {
+            // Note the change version before the full load; replaying changes made during the load is harmless
+            dos.writeUTF("CHANGES_SINCE");
+            dos.writeLong(-1);
+            dis.readUTF(); // RESET
+            changeVersion = dis.readLong();
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error loading changes: " + e.getMessage());
+        }
         refreshFiles();
         refreshUsers();
         updateStats();
     }
     
+    // Applies the file and user changes since the last refresh to the tables
+    private void applyChanges() {
+        try {
+            dos.writeUTF("CHANGES_SINCE");
+            dos.writeLong(changeVersion);
+            
+            String response = dis.readUTF();
+            if (response.equals("RESET")) {
+                // Too far behind for deltas
+                changeVersion = dis.readLong();
+                refreshFiles();
+                refreshUsers();
+                return;
+            } else if (!response.equals("SUCCESS")) {
+                JOptionPane.showMessageDialog(this, "Error loading changes: " + response);
+                return;
+            }
+            changeVersion = dis.readLong();
+            int count = dis.readInt();
+            
+            for (int i = 0; i < count; i++) {
+                String type = dis.readUTF();
+                applyChange(type, readChange(dis, type));
+            }
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Error loading changes: " + e.getMessage());
+        }
+    }
+    
+    // A file row, a removed fileId or a user row depending on the change type
+    private Object readChange(DataInputStream in, String type) throws IOException {
+        if (type.equals("FILE_ADDED")) {
+            return readFileRow(in);
+        } else if (type.equals("FILE_REMOVED")) {
+            return in.readUTF();
+        }
+        return readUserRow(in);
+    }
+    
+    private void applyChange(String type, Object change) {
+        DefaultTableModel files = (DefaultTableModel) filesTable.getModel();
+        DefaultTableModel users = (DefaultTableModel) usersTable.getModel();
+        if (type.equals("FILE_ADDED")) {
+            Object[] row = (Object[]) change;
+            if (findRow(files, (String) row[0]) < 0 && matchesListing(row)) {
+                // Newest first view gets it on top; otherwise it shows up at the end
+                if ("Newest".equals(sortBox.getSelectedItem())) {
+                    files.insertRow(0, row);
+                } else if (filesCursor.isEmpty()) {
+                    files.addRow(row);
+                }
+            }
+        } else if (type.equals("FILE_REMOVED")) {
+            int index = findRow(files, (String) change);
+            if (index >= 0) {
+                files.removeRow(index);
+            }
+        } else {
+            Object[] row = (Object[]) change;
+            int index = findRow(users, (String) row[0]);
+            if (index < 0) {
+                users.addRow(row);
+            } else {
+                for (int column = 0; column < row.length; column++) {
+                    users.setValueAt(row[column], index, column);
+                }
+            }
+            if (row[0].equals(sessionUsername)) {
+                statsStorage = (String) row[3];
+            }
+            int online = 0;
+            for (int i = 0; i < users.getRowCount(); i++) {
+                if (String.valueOf(users.getValueAt(i, 2)).endsWith("Online")) {
+                    online++;
+                }
+            }
+            showStats(online);
+        }
+    }
+    
+    private boolean matchesListing(Object[] row) {
+        String prefix = nameFilter.getText().trim();
+        return prefix.isEmpty() || ((String) row[1]).regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+    
+    private static int findRow(DefaultTableModel model, String key) {
+        for (int row = 0; row < model.getRowCount(); row++) {
+            if (key.equals(model.getValueAt(row, 0))) {
+                return row;
+            }
+        }
+        return -1;
+    }
+    
     private void refreshFiles() {
+        ((DefaultTableModel) filesTable.getModel()).setRowCount(0);
+        filesCursor = "";
+        loadFilesPage();
+    }
+    
+    // Appends the next page of files in the selected order
+    private void loadFilesPage() {
         try {
-            dos.writeUTF("LIST_FILES");
+            String sort = (String) sortBox.getSelectedItem();
+            dos.writeUTF("LIST_FILES_PAGE");
+            dos.writeUTF(sort.equals("Largest") ? "SIZE" : sort.equals("Name") ? "NAME" : "TIMESTAMP");
+            dos.writeBoolean(!sort.equals("Oldest") && !sort.equals("Name"));
+            dos.writeUTF(filesCursor);
+            dos.writeInt(FILES_PAGE_SIZE);
+            dos.writeUTF(""); // Any file type
+            dos.writeUTF(""); // Any sender
+            dos.writeUTF(nameFilter.getText().trim());
+            
+            String response = dis.readUTF();
+            if (!response.equals("SUCCESS")) {
+                JOptionPane.showMessageDialog(this, "Error loading files: " + response);
+                return;
+            }
             int fileCount = dis.readInt();
             
             DefaultTableModel model = (DefaultTableModel) filesTable.getModel();
-            model.setRowCount(0);
-            
-            DecimalFormat sizeFormat = new DecimalFormat("#,##0.00");
-            
             for (int i = 0; i < fileCount; i++) {
-                String fileId = dis.readUTF();
-                String fileName = dis.readUTF();
-                String sender = dis.readUTF();
-                String receiver = dis.readUTF();
-                long fileSize = dis.readLong();
-                String fileType = dis.readUTF();
-                String timestamp = dis.readUTF();
-                
-                String sizeStr = fileSize < 1024 ? fileSize + " B" : 
-                               fileSize < 1024 * 1024 ? sizeFormat.format(fileSize / 1024.0) + " KB" :
-                               sizeFormat.format(fileSize / (1024.0 * 1024.0)) + " MB";
-                
-                model.addRow(new Object[]{fileId, fileName, sender, receiver, sizeStr, fileType, timestamp});
+                model.addRow(readFileRow(dis));
             }
+            
+            filesCursor = dis.readUTF();
+            moreBtn.setEnabled(!filesCursor.isEmpty());
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error loading files: " + e.getMessage());
         }
@@ -373,22 +723,43 @@ public class ShareITClient extends JFrame {
             model.setRowCount(0);
             
             for (int i = 0; i < userCount; i++) {
-                String username = dis.readUTF();
-                String email = dis.readUTF();
-                boolean isOnline = dis.readBoolean();
-                long storageUsed = dis.readLong();
-                long storageLimit = dis.readLong();
-                
-                String status = isOnline ? "🟢 Online" : "🔴 Offline";
-                String storageStr = formatStorage(storageUsed) + " / " + formatStorage(storageLimit);
-                
-                model.addRow(new Object[]{username, email, status, storageStr});
+                model.addRow(readUserRow(dis));
             }
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error loading users: " + e.getMessage());
         }
     }
     
+    private Object[] readFileRow(DataInputStream in) throws IOException {
+        String fileId = in.readUTF();
+        String fileName = in.readUTF();
+        String sender = in.readUTF();
+        String receiver = in.readUTF();
+        long fileSize = in.readLong();
+        String fileType = in.readUTF();
+        String timestamp = in.readUTF();
+        
+        DecimalFormat sizeFormat = new DecimalFormat("#,##0.00");
+        String sizeStr = fileSize < 1024 ? fileSize + " B" : 
+                       fileSize < 1024 * 1024 ? sizeFormat.format(fileSize / 1024.0) + " KB" :
+                       sizeFormat.format(fileSize / (1024.0 * 1024.0)) + " MB";
+        
+        return new Object[]{fileId, fileName, sender, receiver, sizeStr, fileType, timestamp};
+    }
+    
+    private Object[] readUserRow(DataInputStream in) throws IOException {
+        String username = in.readUTF();
+        String email = in.readUTF();
+        boolean isOnline = in.readBoolean();
+        long storageUsed = in.readLong();
+        long storageLimit = in.readLong();
+        
+        String status = isOnline ? "🟢 Online" : "🔴 Offline";
+        String storageStr = formatStorage(storageUsed) + " / " + formatStorage(storageLimit);
+        
+        return new Object[]{username, email, status, storageStr};
+    }
+    
     private void updateStats() {
         try {
             dos.writeUTF("GET_STATS");
@@ -401,14 +772,19 @@ public class ShareITClient extends JFrame {
             
             welcomeLabel.setText("Welcome, " + username + "! (" + email + ")");
             
-            String stats = String.format("Storage: %s / %s | Files: %d | Online Users: %d",
-                formatStorage(storageUsed), formatStorage(storageLimit), fileCount, onlineUsers);
-            statsLabel.setText(stats);
+            statsStorage = formatStorage(storageUsed) + " / " + formatStorage(storageLimit);
+            statsFiles = fileCount;
+            showStats(onlineUsers);
         } catch (Exception e) {
             JOptionPane.showMessageDialog(this, "Error loading stats: " + e.getMessage());
         }
     }
     
+    private void showStats(int onlineUsers) {
+        statsLabel.setText(String.format("Storage: %s | Files: %d | Online Users: %d",
+            statsStorage, statsFiles, onlineUsers));
+    }
+    
     private String formatStorage(long bytes) {
         if (bytes < 1024) return bytes + " B";
         if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
@@ -439,34 +815,14 @@ public class ShareITClient extends JFrame {
                     progressBar.setVisible(true);
                     progressBar.setIndeterminate(true);
                     
-                    dos.writeUTF("UPLOAD");
-                    dos.writeUTF(file.getName());
-                    dos.writeLong(file.length());
-                    dos.writeUTF(receiver);
-                    
-                    // Send file content
-                    try (FileInputStream fis = new FileInputStream(file)) {
-                        byte[] buffer = new byte[8192];
-                        int bytesRead;
-                        long totalSent = 0;
-                        
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            dos.write(buffer, 0, bytesRead);
-                            totalSent += bytesRead;
-                        }
-                    }
-                    
-                    String response = dis.readUTF();
-                    if (response.equals("SUCCESS")) {
-                        String fileId = dis.readUTF();
-                        SwingUtilities.invokeLater(() -> {
-                            JOptionPane.showMessageDialog(this, "File uploaded successfully!\nFile ID: " + fileId);
-                            refreshData();
-                        });
-                    } else {
-                        SwingUtilities.invokeLater(() -> 
-                            JOptionPane.showMessageDialog(this, "Upload failed: " + response));
-                    }
+                    String fileId = uploadChunked(file, receiver);
+                    SwingUtilities.invokeLater(() -> {
+                        JOptionPane.showMessageDialog(this, "File uploaded successfully!\nFile ID: " + fileId);
+                        refreshData();
+                    });
+                } catch (ServerError e) {
+                    SwingUtilities.invokeLater(() -> 
+                        JOptionPane.showMessageDialog(this, "Upload failed: " + e.getMessage()));
                 } catch (Exception e) {
                     SwingUtilities.invokeLater(() -> 
                         JOptionPane.showMessageDialog(this, "Upload error: " + e.getMessage()));
@@ -502,32 +858,12 @@ public class ShareITClient extends JFrame {
                     progressBar.setVisible(true);
                     progressBar.setIndeterminate(true);
                     
-                    dos.writeUTF("DOWNLOAD");
-                    dos.writeUTF(fileId);
-                    
-                    String response = dis.readUTF();
-                    if (response.equals("SUCCESS")) {
-                        String actualFileName = dis.readUTF();
-                        long fileSize = dis.readLong();
-                        
-                        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                            byte[] buffer = new byte[8192];
-                            int bytesRead;
-                            long totalRead = 0;
-                            
-                            while (totalRead < fileSize && (bytesRead = dis.read(buffer)) != -1) {
-                                fos.write(buffer, 0, bytesRead);
-                                totalRead += bytesRead;
-                            }
-                        }
-                        
-                        SwingUtilities.invokeLater(() -> 
-                            JOptionPane.showMessageDialog(this, "File downloaded successfully!"));
-                    } else {
-                        String error = dis.readUTF();
-                        SwingUtilities.invokeLater(() -> 
-                            JOptionPane.showMessageDialog(this, "Download failed: " + error));
-                    }
+                    downloadRanges(fileId, outputFile);
+                    SwingUtilities.invokeLater(() -> 
+                        JOptionPane.showMessageDialog(this, "File downloaded successfully!"));
+                } catch (ServerError e) {
+                    SwingUtilities.invokeLater(() -> 
+                        JOptionPane.showMessageDialog(this, "Download failed: " + e.getMessage()));
                 } catch (Exception e) {
                     SwingUtilities.invokeLater(() -> 
                         JOptionPane.showMessageDialog(this, "Download error: " + e.getMessage()));
@@ -541,6 +877,357 @@ public class ShareITClient extends JFrame {
         }
     }
     
+    // Uploads in chunks; a dropped connection reconnects and re-sends only the chunks the server lacks
+    private String uploadChunked(File file, String receiver) throws IOException, ServerError {
+        String key = file.getAbsolutePath();
+        long fileSize = file.length();
+        ContentHasher hasher = null;
+        String contentHash = null;
+        int attempt = 0;
+        int refused = 0;
+        
+        while (true) {
+            try {
+                String fileId = pendingUploads.get(key);
+                int chunkSize;
+                Queue<Long> offsets = new ConcurrentLinkedQueue<>();
+                
+                if (fileId == null) {
+                    // Offer the content hash first: if the server already has the bytes, nothing is sent
+                    if (hasher == null) {
+                        hasher = hashFile(file);
+                        contentHash = hasher.finish();
+                    }
+                    dos.writeUTF("UPLOAD_BY_HASH");
+                    dos.writeUTF(file.getName());
+                    dos.writeLong(fileSize);
+                    dos.writeUTF(receiver);
+                    dos.writeUTF(contentHash);
+                    
+                    String byHash = dis.readUTF();
+                    if (byHash.equals("SUCCESS")) {
+                        return dis.readUTF();
+                    } else if (!byHash.equals("MISSING")) {
+                        throw new ServerError(byHash);
+                    }
+                    
+                    String response;
+                    int busy = 0;
+                    do {
+                        dos.writeUTF("UPLOAD_INIT");
+                        dos.writeUTF(file.getName());
+                        dos.writeLong(fileSize);
+                        dos.writeUTF(receiver);
+                        dos.writeInt(CHUNK_SIZE);
+                        response = dis.readUTF();
+                    } while (waitIfBusy(response, ++busy));
+                    if (!response.equals("SUCCESS")) {
+                        throw new ServerError(response);
+                    }
+                    fileId = dis.readUTF();
+                    chunkSize = dis.readInt();
+                    pendingUploads.put(key, fileId);
+                    
+                    if (chunkSize == ContentHasher.CHUNK_SIZE) {
+                        // Then offer the chunk hashes and send only the chunks the server lacks
+                        List<String> chunkHashes = hasher.getChunkHashes();
+                        dos.writeUTF("UPLOAD_OFFER_CHUNKS");
+                        dos.writeUTF(fileId);
+                        dos.writeInt(chunkHashes.size());
+                        for (String chunkHash : chunkHashes) {
+                            dos.writeUTF(chunkHash);
+                        }
+                        
+                        response = dis.readUTF();
+                        if (!response.equals("SUCCESS")) {
+                            throw new ServerError(response);
+                        }
+                        int missing = dis.readInt();
+                        for (int i = 0; i < missing; i++) {
+                            offsets.add((long) dis.readInt() * chunkSize);
+                        }
+                    } else {
+                        for (long offset = 0; offset < fileSize; offset += chunkSize) {
+                            offsets.add(offset);
+                        }
+                    }
+                } else {
+                    dos.writeUTF("UPLOAD_STATUS");
+                    dos.writeUTF(fileId);
+                    
+                    String response = dis.readUTF();
+                    if (!response.equals("SUCCESS")) {
+                        pendingUploads.remove(key);
+                        throw new ServerError(response);
+                    }
+                    dis.readLong(); // File size
+                    chunkSize = dis.readInt();
+                    int missing = dis.readInt();
+                    for (int i = 0; i < missing; i++) {
+                        offsets.add((long) dis.readInt() * chunkSize);
+                    }
+                }
+                
+                String id = fileId;
+                int size = chunkSize;
+                TransferCompression.Policy policy = TransferCompression.policyFor(FileTransfer.typeOf(file.getName()));
+                String codec = policy == TransferCompression.Policy.SKIP ? TransferCompression.NONE : serverCodec();
+                AtomicLong sent = new AtomicLong(Math.max(0, fileSize - (long) offsets.size() * chunkSize));
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    runParallel(offsets, chunkSize, streamsFor(fileSize), (cin, cout, offset, buffer) -> {
+                        int length = (int) Math.min(size, fileSize - offset);
+                        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                        while (chunk.hasRemaining()) {
+                            if (in.read(chunk, offset + chunk.position()) < 0) {
+                                throw new EOFException("File changed during upload");
+                            }
+                        }
+                        
+                        if (codec.equals(TransferCompression.NONE)) {
+                            cout.writeUTF("UPLOAD_CHUNK");
+                            cout.writeUTF(id);
+                            cout.writeLong(offset);
+                            cout.writeInt(length);
+                            cout.write(buffer, 0, length);
+                        } else {
+                            cout.writeUTF("UPLOAD_CHUNK_CODEC");
+                            cout.writeUTF(id);
+                            cout.writeLong(offset);
+                            cout.writeInt(length);
+                            cout.writeUTF(codec);
+                            compression.send((at, target) -> target.put(buffer, (int) at, target.remaining()),
+                                    length, policy, Channels.newChannel(cout));
+                        }
+                        String response = cin.readUTF();
+                        if (response.startsWith("RETRY_AFTER ")) {
+                            // The server closes the connection after refusing a chunk
+                            throw new ServerBusy(response);
+                        } else if (!response.equals("SUCCESS")) {
+                            throw new ServerError(response);
+                        }
+                        cin.readLong(); // Bytes acknowledged so far
+                        showProgress(sent.addAndGet(length), fileSize);
+                    });
+                }
+                
+                dos.writeUTF("UPLOAD_COMPLETE");
+                dos.writeUTF(fileId);
+                
+                String response = dis.readUTF();
+                if (!response.equals("SUCCESS")) {
+                    throw new ServerError(response);
+                }
+                pendingUploads.remove(key);
+                return dis.readUTF();
+            } catch (ServerBusy e) {
+                // Wait as long as asked, then reconnect and resume with the chunks the server still lacks
+                if (!waitIfBusy(e.getMessage(), ++refused)) {
+                    throw e;
+                }
+                try {
+                    reconnect();
+                } catch (IOException reconnectFailure) {
+                    retryAfterFailure(++attempt, reconnectFailure);
+                }
+            } catch (IOException e) {
+                retryAfterFailure(++attempt, e);
+            }
+        }
+    }
+    
+    private static ContentHasher hashFile(File file) throws IOException {
+        ContentHasher hasher = new ContentHasher();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hasher;
+    }
+    
+    // Downloads in ranges; a dropped connection reconnects and fetches only the ranges still missing
+    private void downloadRanges(String fileId, File outputFile) throws IOException, ServerError {
+        try (FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            AtomicLong fileSize = new AtomicLong(-1);
+            AtomicLong received = new AtomicLong();
+            String offered = serverCodec();
+            ChunkTask fetch = (cin, cout, offset, buffer) -> {
+                boolean negotiate = !offered.equals(TransferCompression.NONE);
+                cout.writeUTF(negotiate ? "DOWNLOAD_RANGE_CODEC" : "DOWNLOAD_RANGE");
+                cout.writeUTF(fileId);
+                cout.writeLong(offset);
+                cout.writeLong(CHUNK_SIZE);
+                if (negotiate) {
+                    cout.writeUTF(offered);
+                }
+                
+                String response = cin.readUTF();
+                if (!response.equals("SUCCESS")) {
+                    throw new ServerError(response);
+                }
+                cin.readUTF(); // File name
+                fileSize.set(cin.readLong());
+                int length = (int) cin.readLong();
+                // The server only compresses file types that are worth it
+                if (negotiate && !cin.readUTF().equals(TransferCompression.NONE)) {
+                    compression.receive(Channels.newChannel(cin), length,
+                            (at, data) -> data.get(buffer, (int) at, data.remaining()));
+                } else {
+                    cin.readFully(buffer, 0, length);
+                }
+                
+                // Positional write, ranges may complete in any order
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                while (chunk.hasRemaining()) {
+                    out.write(chunk, offset + chunk.position());
+                }
+                showProgress(received.addAndGet(length), fileSize.get());
+            };
+            
+            // The first range tells us the file size, the rest can then be spread over the streams
+            Queue<Long> offsets = new ConcurrentLinkedQueue<>();
+            offsets.add(0L);
+            int attempt = 0;
+            while (!offsets.isEmpty()) {
+                try {
+                    if (fileSize.get() < 0) {
+                        runParallel(offsets, CHUNK_SIZE, 1, fetch);
+                        for (long offset = CHUNK_SIZE; offset < fileSize.get(); offset += CHUNK_SIZE) {
+                            offsets.add(offset);
+                        }
+                    }
+                    runParallel(offsets, CHUNK_SIZE, streamsFor(fileSize.get()), fetch);
+                } catch (IOException e) {
+                    retryAfterFailure(++attempt, e);
+                }
+            }
+        }
+    }
+    
+    private int streamsFor(long fileSize) {
+        return fileSize >= PARALLEL_THRESHOLD ? Math.max(1, STREAMS) : 1;
+    }
+    
+    // Moves the queued chunks over the main connection plus extra attached connections.
+    // Chunks that fail go back on the queue; anything left over is reported through the thrown exception.
+    private void runParallel(Queue<Long> offsets, int bufferSize, int streams, ChunkTask task) throws IOException, ServerError {
+        if (streams <= 1) {
+            drainChunks(offsets, task, dis, dos, new byte[bufferSize]);
+            return;
+        }
+        
+        List<Socket> extraSockets = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            workers.add(pool.submit(() -> drainChunks(offsets, task, dis, dos, new byte[bufferSize])));
+            for (int i = 1; i < streams; i++) {
+                try {
+                    Socket extra = attachStream();
+                    extraSockets.add(extra);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(extra.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(extra.getOutputStream());
+                    workers.add(pool.submit(() -> drainChunks(offsets, task, in, out, new byte[bufferSize])));
+                } catch (IOException e) {
+                    // Carry on with the streams we have
+                }
+            }
+            
+            Throwable failure = null;
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Transfer interrupted");
+                }
+            }
+            // A broken stream is fine as long as the others picked up its chunks
+            if (!offsets.isEmpty()) {
+                if (failure instanceof ServerError) {
+                    throw (ServerError) failure;
+                }
+                throw failure instanceof IOException ? (IOException) failure : new IOException("Transfer incomplete", failure);
+            }
+        } finally {
+            pool.shutdownNow();
+            for (Socket extra : extraSockets) {
+                try {
+                    extra.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+    
+    private Void drainChunks(Queue<Long> offsets, ChunkTask task, DataInputStream in, DataOutputStream out, byte[] buffer)
+            throws IOException, ServerError {
+        Long offset;
+        while ((offset = offsets.poll()) != null) {
+            try {
+                task.transfer(in, out, offset, buffer);
+            } catch (IOException | ServerError e) {
+                offsets.add(offset);
+                throw e;
+            }
+        }
+        return null;
+    }
+    
+    // A second connection for the same session that only carries chunks
+    private Socket attachStream() throws IOException {
+        Socket extra = openSocket();
+        DataOutputStream out = new DataOutputStream(extra.getOutputStream());
+        DataInputStream in = new DataInputStream(extra.getInputStream());
+        out.writeUTF("ATTACH");
+        out.writeUTF(sessionUsername);
+        out.writeUTF(sessionPassword);
+        
+        String response = in.readUTF();
+        if (!response.startsWith("SUCCESS")) {
+            extra.close();
+            throw new IOException("Attach failed: " + response);
+        }
+        return extra;
+    }
+    
+    private interface ChunkTask {
+        void transfer(DataInputStream in, DataOutputStream out, long offset, byte[] buffer) throws IOException, ServerError;
+    }
+    
+    private void showProgress(long done, long total) {
+        int percent = total == 0 ? 100 : (int) (done * 100 / total);
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setIndeterminate(false);
+            progressBar.setValue(percent);
+        });
+    }
+    
+    // An error answer from the server, as opposed to a broken connection
+    private static class ServerError extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        ServerError(String message) {
+            super(message);
+        }
+    }
+    
+    // A "RETRY_AFTER" answer the server closed the connection after
+    private static class ServerBusy extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        ServerBusy(String response) {
+            super(response);
+        }
+    }
+    
     private void deleteFile() {
         int selectedRow = filesTable.getSelectedRow();
         if (selectedRow == -1) {
@@ -575,8 +1262,7 @@ public class ShareITClient extends JFrame {
     }
     
     private void refreshData() {
-        refreshFiles();
-        refreshUsers();
+        applyChanges();
         updateStats();
     }
     
@@ -584,6 +1270,12 @@ public class ShareITClient extends JFrame {
         try {
             dos.writeUTF("LOGOUT");
             dis.readUTF(); // Read response
+            sessionUsername = null;
+            sessionPassword = null;
+            if (eventSocket != null) {
+                eventSocket.close();
+                eventSocket = null;
+            }
             
             showLoginPanel();
             loginUsername.setText("");
@@ -0,0 +1,61 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Consumer;
+
+public class ChannelIO {
+    
+    private ChannelIO() {
+    }
+    
+    // Sends count bytes of the file starting at position; uses sendfile where the OS supports it
+    public static void sendFile(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, target);
+            if (sent <= 0 && position >= file.size()) {
+                throw new EOFException("File shorter than expected");
+            }
+            position += sent;
+        }
+    }
+    
+    // Writes exactly count bytes from the source into the file at position, never reading past them
+    public static void receiveFile(ReadableByteChannel source, FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long received = file.transferFrom(source, position, end - position);
+            if (received <= 0) {
+                throw new EOFException("Connection closed after " + (count - (end - position)) + " of " + count + " bytes");
+            }
+            position += received;
+        }
+    }
+    
+    // Like receiveFile, but every byte is also shown to the observer (e.g. a hasher) on its way to disk
+    public static void receiveFile(ReadableByteChannel source, FileChannel file, long position, long count,
+                                   Consumer<ByteBuffer> observer, ByteBuffer buffer) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            if (source.read(buffer) < 0) {
+                throw new EOFException("Connection closed after " + (count - remaining) + " of " + count + " bytes");
+            }
+            buffer.flip();
+            int length = buffer.remaining();
+            observer.accept(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                position += file.write(buffer, position);
+            }
+            remaining -= length;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 of a whole file plus the SHA-256 of every fixed-size chunk, computed in a single pass.
+ * Client and server use the same chunking so chunk hashes can be compared for deduplication.
+ */
+public class ContentHasher {
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    
+    private final MessageDigest fileDigest = newDigest();
+    private final MessageDigest chunkDigest = newDigest();
+    private final List<String> chunkHashes = new ArrayList<>();
+    private long chunkFill;
+    
+    public void update(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            int length = (int) Math.min(data.remaining(), CHUNK_SIZE - chunkFill);
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + length);
+            fileDigest.update(slice.duplicate());
+            chunkDigest.update(slice);
+            data.position(data.position() + length);
+            chunkFill += length;
+            if (chunkFill == CHUNK_SIZE) {
+                chunkHashes.add(toHex(chunkDigest.digest()));
+                chunkFill = 0;
+            }
+        }
+    }
+    
+    // Finishes both digests and returns the hash of the whole content
+    public String finish() {
+        if (chunkFill > 0) {
+            chunkHashes.add(toHex(chunkDigest.digest()));
+            chunkFill = 0;
+        }
+        return toHex(fileDigest.digest());
+    }
+    
+    public List<String> getChunkHashes() {
+        return chunkHashes;
+    }
+    
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
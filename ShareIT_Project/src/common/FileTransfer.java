@@ -2,6 +2,7 @@ package common;
 
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.util.BitSet;
 
 public class FileTransfer implements Serializable {
     private String fileId;
@@ -10,25 +11,38 @@ public class FileTransfer implements Serializable {
     private String sender;
     private String receiver;
     private LocalDateTime timestamp;
-    private String status;
+    private volatile String status;
     private String fileType;
-
+    private volatile String contentHash;
+    // Chunked upload progress, only set for resumable uploads
+    private int chunkSize;
+    private BitSet receivedChunks;
+    
     public FileTransfer(String fileId, String fileName, long fileSize, String sender, String receiver) {
+        this(fileId, fileName, fileSize, sender, receiver, LocalDateTime.now());
+    }
+    
+    public FileTransfer(String fileId, String fileName, long fileSize, String sender, String receiver, LocalDateTime timestamp) {
         this.fileId = fileId;
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.sender = sender;
         this.receiver = receiver;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
         this.status = "PENDING";
-        this.fileType = getFileExtension(fileName);
+        this.fileType = typeOf(fileName);
     }
-
-    private String getFileExtension(String fileName) {
+    
+    // For subclasses that keep the fields somewhere else and override the getters
+    protected FileTransfer() {
+    }
+    
+    // Upper case extension of a file name, or UNKNOWN
+    public static String typeOf(String fileName) {
         int lastIndex = fileName.lastIndexOf('.');
         return lastIndex > 0 ? fileName.substring(lastIndex + 1).toUpperCase() : "UNKNOWN";
     }
-
+    
     // Getters and setters
     public String getFileId() { return fileId; }
     public String getFileName() { return fileName; }
@@ -39,5 +53,60 @@ public class FileTransfer implements Serializable {
     public String getStatus() { return status; }
     public String getFileType() { return fileType; }
     
+    public String getContentHash() { return contentHash; }
+    public int getChunkSize() { return chunkSize; }
+    
     public void setStatus(String status) { this.status = status; }
+    public void setContentHash(String contentHash) { this.contentHash = contentHash; }
+    
+    public synchronized void startChunkedUpload(int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.receivedChunks = new BitSet(getChunkCount());
+        this.status = "UPLOADING";
+    }
+    
+    public synchronized int getChunkCount() {
+        return chunkSize == 0 ? 0 : (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+    
+    // A chunk must start on a chunk boundary and cover the whole chunk (the last one may be short)
+    public synchronized boolean isValidChunk(long offset, int length) {
+        if (receivedChunks == null || !"UPLOADING".equals(status) || offset < 0 || offset >= fileSize || offset % chunkSize != 0) {
+            return false;
+        }
+        return length == Math.min(chunkSize, fileSize - offset);
+    }
+    
+    public synchronized void markChunkReceived(long offset) {
+        receivedChunks.set((int) (offset / chunkSize));
+    }
+    
+    // Bytes received without gaps from the start of the file, i.e. where a resume continues
+    public synchronized long getCommittedBytes() {
+        if (receivedChunks == null) {
+            return "COMPLETED".equals(getStatus()) ? getFileSize() : 0;
+        }
+        return Math.min(fileSize, (long) receivedChunks.nextClearBit(0) * chunkSize);
+    }
+    
+    // Chunks still missing, in any order they may be sent (parallel streams fill gaps out of order)
+    public synchronized int[] getMissingChunks() {
+        int count = getChunkCount();
+        int[] missing = new int[count - receivedChunks.cardinality()];
+        int i = 0;
+        for (int chunk = receivedChunks.nextClearBit(0); chunk < count; chunk = receivedChunks.nextClearBit(chunk + 1)) {
+            missing[i++] = chunk;
+        }
+        return missing;
+    }
+    
+    // Flips an upload to FINISHING once every chunk has arrived, for the server to store it and mark it
+    // COMPLETED; only succeeds once
+    public synchronized boolean completeUpload() {
+        if (receivedChunks == null || !"UPLOADING".equals(status) || receivedChunks.nextClearBit(0) < getChunkCount()) {
+            return false;
+        }
+        status = "FINISHING";
+        return true;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,273 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of file data on the wire, agreed per transfer. Data goes in frames of up to
+ * {@link #FRAME_SIZE} bytes: {@code int rawLength, int storedLength}, then storedLength bytes of
+ * Deflate output, or the rawLength bytes as they are when storedLength is 0. A frame that doesn't
+ * shrink is sent raw, so incompressible data costs a little CPU and 8 bytes per frame.
+ *
+ * Frames are read and compressed (or decompressed and written) on the workers, a few frames ahead of
+ * the thread moving them over the connection, so compression overlaps the network I/O.
+ */
+public class TransferCompression {
+    
+    public static final String NONE = "none";
+    public static final String DEFLATE = "deflate";
+    // Codecs this version speaks, best first
+    public static final List<String> CODECS = List.of(DEFLATE);
+    public static final int FRAME_SIZE = 256 * 1024;
+    public static final int HEADER_SIZE = 8;
+    
+    // Formats that are compressed already; another pass only costs time
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "ZIP", "GZ", "TGZ", "BZ2", "XZ", "7Z", "RAR", "ZST", "LZ4", "JAR", "APK",
+            "JPG", "JPEG", "PNG", "GIF", "WEBP", "HEIC", "AVIF",
+            "MP4", "MKV", "MOV", "AVI", "WEBM", "MP3", "AAC", "OGG", "OPUS", "FLAC", "M4A",
+            "PDF", "DOCX", "XLSX", "PPTX", "ODT", "ODS", "EPUB");
+    // Text and other formats that usually shrink a lot
+    private static final Set<String> TEXT_TYPES = Set.of(
+            "TXT", "LOG", "CSV", "TSV", "JSON", "XML", "HTML", "HTM", "CSS", "JS", "MD", "SQL", "YAML", "YML",
+            "INI", "CONF", "PROPERTIES", "JAVA", "C", "H", "CPP", "PY", "SH", "SVG", "BMP", "WAV", "TAR");
+    
+    /**
+     * What to do with a file type: always try, never try, or try and give up after the first frame
+     * that doesn't shrink.
+     */
+    public enum Policy { COMPRESS, SKIP, PROBE }
+    
+    // Policy for a file type as derived by FileTransfer (the upper case extension)
+    public static Policy policyFor(String fileType) {
+        String type = fileType.toUpperCase(Locale.ROOT);
+        if (COMPRESSED_TYPES.contains(type)) {
+            return Policy.SKIP;
+        }
+        return TEXT_TYPES.contains(type) ? Policy.COMPRESS : Policy.PROBE;
+    }
+    
+    // The first codec of ours the other side offered, or NONE
+    public static String choose(List<String> offered) {
+        for (String codec : CODECS) {
+            if (offered.contains(codec)) {
+                return codec;
+            }
+        }
+        return NONE;
+    }
+    
+    /**
+     * Fills target with the bytes at position; may be called from several workers at once.
+     */
+    public interface FrameSource {
+        void read(long position, ByteBuffer target) throws IOException;
+    }
+    
+    /**
+     * Takes the bytes for position; may be called from several workers at once, in any order.
+     */
+    public interface FrameSink {
+        void write(long position, ByteBuffer data) throws IOException;
+    }
+    
+    private final Executor workers;
+    private final int depth;
+    private final ThreadLocal<Deflater> deflaters;
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    
+    /**
+     * @param level Deflater level, 1 (fastest) to 9 (smallest)
+     * @param depth frames a transfer may have on the workers at once
+     */
+    public TransferCompression(Executor workers, int level, int depth) {
+        this.workers = workers;
+        this.depth = Math.max(1, depth);
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+    
+    /**
+     * Sends length bytes from source as frames; returns the bytes written to out.
+     */
+    public long send(FrameSource source, long length, Policy policy, WritableByteChannel out) throws IOException {
+        AtomicBoolean compress = new AtomicBoolean(policy != Policy.SKIP);
+        ArrayDeque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+        long next = 0;
+        long written = 0;
+        try {
+            while (next < length || !pending.isEmpty()) {
+                while (next < length && pending.size() < depth) {
+                    long position = next;
+                    int size = (int) Math.min(FRAME_SIZE, length - next);
+                    pending.add(submit(() -> frame(source, position, size, policy, compress)));
+                    next += size;
+                }
+                ByteBuffer frame = await(pending.poll());
+                written += frame.remaining();
+                while (frame.hasRemaining()) {
+                    out.write(frame);
+                }
+            }
+            return written;
+        } finally {
+            // Frames not started yet are dropped; running ones finish. Interrupting them would hit
+            // workers shared with other transfers, and an interrupted channel read closes the channel.
+            for (Future<ByteBuffer> frame : pending) {
+                frame.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Reads frames holding length bytes from in and hands the bytes to sink; returns the bytes read
+     * from in.
+     */
+    public long receive(ReadableByteChannel in, long length, FrameSink sink) throws IOException {
+        ArrayDeque<Future<Void>> pending = new ArrayDeque<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long received = 0;
+        long read = 0;
+        try {
+            while (received < length) {
+                header.clear();
+                readFully(in, header);
+                int rawLength = header.getInt(0);
+                int storedLength = header.getInt(4);
+                if (rawLength <= 0 || rawLength > FRAME_SIZE || rawLength > length - received
+                        || storedLength < 0 || storedLength >= rawLength) {
+                    throw new IOException("Malformed compressed frame");
+                }
+                ByteBuffer body = ByteBuffer.allocate(storedLength == 0 ? rawLength : storedLength);
+                readFully(in, body);
+                
+                if (pending.size() >= depth) {
+                    await(pending.poll());
+                }
+                long position = received;
+                pending.add(submit(() -> {
+                    sink.write(position, decode(body.flip(), rawLength, storedLength));
+                    return null;
+                }));
+                received += rawLength;
+                read += HEADER_SIZE + body.capacity();
+            }
+            while (!pending.isEmpty()) {
+                await(pending.poll());
+            }
+            return read;
+        } finally {
+            // As in send: a frame being written finishes, so the sink's channel is never interrupted
+            for (Future<Void> frame : pending) {
+                frame.cancel(false);
+            }
+        }
+    }
+    
+    // One frame ready to go out, header included
+    private ByteBuffer frame(FrameSource source, long position, int size, Policy policy, AtomicBoolean compress)
+            throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(HEADER_SIZE + size);
+        raw.position(HEADER_SIZE);
+        source.read(position, raw);
+        if (raw.hasRemaining()) {
+            throw new EOFException("Source ended " + raw.remaining() + " bytes early");
+        }
+        if (compress.get()) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(raw.array(), HEADER_SIZE, size);
+            deflater.finish();
+            // Only worth it if at least 1/16 smaller
+            byte[] packed = new byte[HEADER_SIZE + size - size / 16];
+            int stored = deflater.deflate(packed, HEADER_SIZE, packed.length - HEADER_SIZE);
+            if (deflater.finished()) {
+                return header(ByteBuffer.wrap(packed, 0, HEADER_SIZE + stored), size, stored);
+            }
+            if (policy == Policy.PROBE) {
+                compress.set(false);
+            }
+        }
+        return header(raw.flip(), size, 0);
+    }
+    
+    private static ByteBuffer header(ByteBuffer frame, int rawLength, int storedLength) {
+        frame.putInt(0, rawLength);
+        frame.putInt(4, storedLength);
+        return frame;
+    }
+    
+    /**
+     * The raw bytes of a frame, given its body and the two lengths from its header.
+     */
+    public static ByteBuffer decode(ByteBuffer body, int rawLength, int storedLength) throws IOException {
+        if (storedLength == 0) {
+            return body;
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(body);
+        byte[] raw = new byte[rawLength];
+        try {
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, rawLength - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawLength || !inflater.finished()) {
+                throw new IOException("Compressed frame doesn't match its length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return ByteBuffer.wrap(raw);
+    }
+    
+    private <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        workers.execute(future);
+        return future;
+    }
+    
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during a compressed transfer");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Compressed transfer failed", cause);
+        }
+    }
+    
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("Connection closed inside a compressed frame");
+            }
+        }
+    }
+}
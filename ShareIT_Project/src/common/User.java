@@ -13,13 +13,18 @@ public class User implements Serializable {
     private long storageLimit;
 
     public User(String username, String passwordHash, String email) {
+        this(username, passwordHash, email, LocalDateTime.now(), 100 * 1024 * 1024); // 100MB default
+    }
+    
+    // Restores a stored user
+    public User(String username, String passwordHash, String email, LocalDateTime registrationDate, long storageLimit) {
         this.username = username;
         this.passwordHash = passwordHash;
         this.email = email;
-        this.registrationDate = LocalDateTime.now();
+        this.registrationDate = registrationDate;
         this.isOnline = false;
         this.storageUsed = 0;
-        this.storageLimit = 100 * 1024 * 1024; // 100MB default
+        this.storageLimit = storageLimit;
     }
 
     // Getters and setters
@@ -33,6 +38,7 @@ public class User implements Serializable {
     
     public void setOnline(boolean online) { isOnline = online; }
     public void setStorageUsed(long storageUsed) { this.storageUsed = storageUsed; }
+    public void setPasswordHash(String passwordHash) { this.passwordHash = passwordHash; }
     
     public boolean canUpload(long fileSize) {
         return (storageUsed + fileSize) <= storageLimit;
@@ -0,0 +1,279 @@
+package security;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * AES-256-GCM for stored files, in independently authenticated chunks of {@link #CHUNK_SIZE} bytes.
+ * Any byte range can be decrypted by reading only the chunks it touches, and every chunk is verified
+ * on its own, so a resumed download checks exactly what it sends.
+ *
+ * Layout: a 32 byte header (magic, version, chunk size, plaintext length, random nonce prefix), then
+ * one ciphertext chunk plus 16 byte tag per plaintext chunk. A chunk's nonce is the file's nonce
+ * prefix followed by the chunk number, and the header is authenticated with every chunk, so chunks
+ * can't be reordered, swapped between files or cut off.
+ *
+ * Ciphers and direct buffers are pooled and reused for every chunk.
+ */
+public class ChunkedEncryption {
+    
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int HEADER_SIZE = 32;
+    private static final int TAG_SIZE = 16;
+    private static final byte[] MAGIC = "SHAREENC".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    // Not per thread: with virtual threads every connection would get its own direct buffers
+    private final Queue<Worker> idle = new ConcurrentLinkedQueue<>();
+    
+    public ChunkedEncryption(SecretKey key) {
+        this.key = key;
+    }
+    
+    /**
+     * Reads the base64 AES-256 key in the file, or creates the file with a new random key.
+     */
+    public static ChunkedEncryption fromKeyFile(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, "key", ".tmp");
+            try {
+                // Owner only where the file system supports it
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Not a POSIX file system
+            }
+            Files.write(temp, Base64.getEncoder().encode(key));
+            Files.move(temp, file);
+        }
+        byte[] key = Base64.getDecoder().decode(Files.readString(file).trim());
+        if (key.length != 32) {
+            throw new IOException("Encryption key in " + file + " is not 256 bits");
+        }
+        return new ChunkedEncryption(new SecretKeySpec(key, "AES"));
+    }
+    
+    // Plaintext length stored in the header of an encrypted file
+    public static long plaintextLength(FileChannel file) throws IOException {
+        return readHeader(file).getLong(16);
+    }
+    
+    // Size of the encrypted file for the given plaintext length
+    public static long encryptedLength(long plaintextLength) {
+        long chunks = (plaintextLength + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        return HEADER_SIZE + plaintextLength + chunks * TAG_SIZE;
+    }
+    
+    /**
+     * Starts writing an encrypted file of exactly plaintextLength bytes at the start of target.
+     * The encryptor has to be closed.
+     */
+    public Encryptor encrypt(FileChannel target, long plaintextLength) throws IOException {
+        byte[] prefix = new byte[8];
+        random.nextBytes(prefix);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putInt(VERSION).putInt(CHUNK_SIZE).putLong(plaintextLength).put(prefix).flip();
+        writeFully(target, header.duplicate(), 0);
+        return new Encryptor(target, header.array(), plaintextLength, borrow());
+    }
+    
+    /**
+     * Decrypts count bytes of plaintext starting at position and writes them to target. Only the
+     * chunks covering the range are read, and each is authenticated before any of it is written.
+     */
+    public void decrypt(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        byte[] header = readHeader(source).array();
+        long length = ByteBuffer.wrap(header).getLong(16);
+        if (position < 0 || count < 0 || position + count > length) {
+            throw new EOFException("Range past the end of the content");
+        }
+        Worker worker = borrow();
+        try {
+            ByteBuffer plain = worker.plain;
+            long end = position + count;
+            for (long chunk = position / CHUNK_SIZE; chunk * CHUNK_SIZE < end; chunk++) {
+                decryptChunk(source, header, length, chunk, worker);
+                long chunkStart = chunk * CHUNK_SIZE;
+                plain.position((int) (Math.max(position, chunkStart) - chunkStart));
+                plain.limit((int) (Math.min(end, chunkStart + plain.limit()) - chunkStart));
+                while (plain.hasRemaining()) {
+                    target.write(plain);
+                }
+            }
+        } finally {
+            idle.offer(worker);
+        }
+    }
+    
+    /**
+     * Encrypts plaintext as it arrives, one full chunk at a time.
+     */
+    public class Encryptor implements Closeable {
+        private final FileChannel target;
+        private final byte[] header;
+        private final long length;
+        private final Worker worker;
+        private final ByteBuffer plain;
+        private long chunk;
+        private long written;
+        
+        Encryptor(FileChannel target, byte[] header, long length, Worker worker) {
+            this.target = target;
+            this.header = header;
+            this.length = length;
+            this.worker = worker;
+            this.plain = worker.plain;
+            plain.clear();
+        }
+        
+        public void update(ByteBuffer data) throws IOException {
+            if (written + data.remaining() > length) {
+                throw new IOException("More data than the declared length");
+            }
+            while (data.hasRemaining()) {
+                int take = Math.min(data.remaining(), plain.remaining());
+                ByteBuffer slice = data.duplicate();
+                slice.limit(slice.position() + take);
+                plain.put(slice);
+                data.position(data.position() + take);
+                written += take;
+                if (!plain.hasRemaining()) {
+                    writeChunk();
+                }
+            }
+        }
+        
+        // Writes the last partial chunk; fails if fewer bytes than declared came in
+        public void finish() throws IOException {
+            if (written != length) {
+                throw new EOFException("Got " + written + " of " + length + " bytes");
+            }
+            if (plain.position() > 0) {
+                writeChunk();
+            }
+        }
+        
+        // Returns the buffers to the pool; the encryptor can't be used afterwards
+        @Override
+        public void close() {
+            idle.offer(worker);
+        }
+        
+        private void writeChunk() throws IOException {
+            plain.flip();
+            ByteBuffer sealed = worker.sealed;
+            sealed.clear();
+            try {
+                init(worker.cipher, Cipher.ENCRYPT_MODE, header, chunk).doFinal(plain, sealed);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed", e);
+            }
+            sealed.flip();
+            writeFully(target, sealed, chunkOffset(chunk));
+            plain.clear();
+            chunk++;
+        }
+    }
+    
+    // Leaves the chunk's plaintext between 0 and the buffer's limit
+    private void decryptChunk(FileChannel source, byte[] header, long length, long chunk, Worker worker) throws IOException {
+        int plainLength = (int) Math.min(CHUNK_SIZE, length - chunk * CHUNK_SIZE);
+        ByteBuffer plain = worker.plain;
+        ByteBuffer sealed = worker.sealed;
+        sealed.clear().limit(plainLength + TAG_SIZE);
+        readFully(source, sealed, chunkOffset(chunk));
+        sealed.flip();
+        plain.clear();
+        try {
+            init(worker.cipher, Cipher.DECRYPT_MODE, header, chunk).doFinal(sealed, plain);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Chunk " + chunk + " failed authentication", e);
+        }
+        plain.flip();
+    }
+    
+    // Nonce: the file's 8 byte prefix, then the chunk number
+    private Cipher init(Cipher cipher, int mode, byte[] header, long chunk) throws GeneralSecurityException {
+        byte[] nonce = new byte[12];
+        System.arraycopy(header, 24, nonce, 0, 8);
+        ByteBuffer.wrap(nonce, 8, 4).putInt((int) chunk);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(header);
+        return cipher;
+    }
+    
+    private static long chunkOffset(long chunk) {
+        return HEADER_SIZE + chunk * (CHUNK_SIZE + TAG_SIZE);
+    }
+    
+    private static ByteBuffer readHeader(FileChannel file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(file, header, 0);
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.duplicate().get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getInt(8) != VERSION || header.getInt(12) != CHUNK_SIZE) {
+            throw new IOException("Not an encrypted file of this version");
+        }
+        return header;
+    }
+    
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = file.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Encrypted file is truncated");
+            }
+            position += n;
+        }
+    }
+    
+    private static void writeFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += file.write(buffer, position);
+        }
+    }
+    
+    private Worker borrow() {
+        Worker worker = idle.poll();
+        return worker != null ? worker : new Worker();
+    }
+    
+    // A cipher and its buffers, used by one thread at a time
+    private static class Worker {
+        final Cipher cipher;
+        final ByteBuffer plain = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        final ByteBuffer sealed = ByteBuffer.allocateDirect(CHUNK_SIZE + TAG_SIZE);
+        
+        Worker() {
+            try {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES-GCM not available", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package security;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, stored as {@code pbkdf2-sha256$iterations$salt$hash}
+ * with base64 salt and hash. The iteration count is part of every hash, so it can be raised at any
+ * time; hashes made with fewer iterations, and the unsalted SHA-256 hashes of older versions, still
+ * verify and are reported by {@link #needsRehash} so they can be replaced on the next login.
+ *
+ * Hashes are always compared in constant time.
+ */
+public class PasswordHasher {
+    
+    public static final int DEFAULT_ITERATIONS = 310_000;
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    
+    public PasswordHasher(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        this.iterations = iterations;
+    }
+    
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+    
+    public boolean verify(String password, String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(legacyHash(password), stored.getBytes(StandardCharsets.US_ASCII));
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            byte[] salt = Base64.getDecoder().decode(parts[1]);
+            byte[] expected = Base64.getDecoder().decode(parts[2]);
+            return MessageDigest.isEqual(pbkdf2(password, salt, Integer.parseInt(parts[0])), expected);
+        } catch (IllegalArgumentException e) {
+            // Damaged hash
+            return false;
+        }
+    }
+    
+    // True for hashes in an older format or with fewer iterations than configured
+    public boolean needsRehash(String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return true;
+        }
+        String count = stored.substring(PREFIX.length(), Math.max(stored.indexOf('$', PREFIX.length()), PREFIX.length()));
+        try {
+            return Integer.parseInt(count) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+    
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+    
+    // Base64 SHA-256 of the password, as stored by versions before salted hashes
+    private static byte[] legacyHash(String password) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(password.getBytes());
+            return Base64.getEncoder().encode(hash);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
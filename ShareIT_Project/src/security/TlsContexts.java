@@ -0,0 +1,55 @@
+package security;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * SSLContexts for the optional TLS transport. One context is built per process and shared by every
+ * connection, since the session cache (and with it session resumption) lives in the context.
+ */
+public class TlsContexts {
+    
+    private TlsContexts() {
+    }
+    
+    /**
+     * Server context with the key and certificate from a PKCS12 or JKS key store. Up to sessionCacheSize
+     * sessions are kept for sessionTimeoutSeconds; TLS 1.3 clients resume from session tickets instead.
+     */
+    public static SSLContext server(Path keyStore, char[] password, int sessionCacheSize, int sessionTimeoutSeconds)
+            throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(KeyStore.getInstance(keyStore.toFile(), password), password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeoutSeconds);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load TLS key store " + keyStore, e);
+        }
+    }
+    
+    /**
+     * Client context trusting the certificates in trustStore, or the JDK's default CAs when it is null.
+     */
+    public static SSLContext client(Path trustStore, char[] password) throws IOException {
+        try {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(trustStore != null ? KeyStore.getInstance(trustStore.toFile(), password) : null);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load TLS trust store " + trustStore, e);
+        }
+    }
+}
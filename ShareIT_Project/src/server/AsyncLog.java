@@ -0,0 +1,234 @@
+package server;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Server log that never touches the disk on the calling thread. Messages go into a fixed ring
+ * buffer and a background thread formats whatever has piled up and writes it with one write per
+ * batch, to the log file and optionally the console. The file is rotated when it grows past a
+ * size limit or when the day changes; rotated files are kept as server.log.1 (newest) to server.log.N.
+ *
+ * When the ring is full the caller either waits for room (BLOCK) or the message is counted and
+ * dropped (DROP); dropped messages are reported in the log once there is room again.
+ */
+public class AsyncLog {
+    
+    public enum Overflow { BLOCK, DROP }
+    
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    
+    private final Path file;
+    private final long maxBytes;
+    private final int keep;
+    private final Overflow overflow;
+    private final PrintStream console;
+    
+    // Ring buffer, guarded by this
+    private final long[] times;
+    private final String[] messages;
+    private final int mask;
+    private int head, size;
+    private long dropped;
+    private boolean closed;
+    
+    // Writer thread only
+    private final long[] batchTimes;
+    private final String[] batchMessages;
+    private OutputStream out;
+    private long fileBytes;
+    private LocalDate fileDate;
+    private long lastSecond = Long.MIN_VALUE;
+    private String lastTimestamp;
+    private final Thread writer;
+    
+    /**
+     * @param capacity ring size, rounded up to a power of two
+     * @param console  also echo every line here, or null
+     */
+    public AsyncLog(Path file, int capacity, Overflow overflow, long maxBytes, int keep, PrintStream console) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+        this.overflow = overflow;
+        this.console = console;
+        int slots = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        times = new long[slots];
+        messages = new String[slots];
+        batchTimes = new long[slots];
+        batchMessages = new String[slots];
+        mask = slots - 1;
+        
+        writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Whatever is still buffered is written when the JVM exits normally
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-shutdown"));
+    }
+    
+    public void log(String message) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            while (size == times.length) {
+                if (overflow == Overflow.DROP || closed) {
+                    dropped++;
+                    return;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped++;
+                    return;
+                }
+            }
+            int tail = (head + size) & mask;
+            times[tail] = now;
+            messages[tail] = message;
+            // The writer only waits when the ring is empty
+            if (size++ == 0) {
+                notifyAll();
+            }
+        }
+    }
+    
+    // Writes everything logged so far and stops the writer
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void writeLoop() {
+        while (true) {
+            int count;
+            long lost;
+            synchronized (this) {
+                while (size == 0 && dropped == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (size == 0 && dropped == 0) {
+                    break;
+                }
+                count = size;
+                for (int i = 0; i < count; i++) {
+                    int slot = (head + i) & mask;
+                    batchTimes[i] = times[slot];
+                    batchMessages[i] = messages[slot];
+                    messages[slot] = null;
+                }
+                head = (head + count) & mask;
+                size = 0;
+                lost = dropped;
+                dropped = 0;
+                // Wake callers waiting for room
+                notifyAll();
+            }
+            writeBatch(count, lost);
+        }
+        closeFile();
+    }
+    
+    private void writeBatch(int count, long lost) {
+        StringBuilder text = new StringBuilder(count * 96);
+        for (int i = 0; i < count; i++) {
+            text.append('[').append(timestamp(batchTimes[i])).append("] ").append(batchMessages[i]).append('\n');
+            batchMessages[i] = null;
+        }
+        if (lost > 0) {
+            text.append('[').append(timestamp(System.currentTimeMillis())).append("] ")
+                .append(lost).append(" log messages dropped\n");
+        }
+        if (console != null) {
+            console.print(text);
+            console.flush();
+        }
+        
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            LocalDate today = LocalDate.now();
+            if (out != null && fileBytes > 0 && (fileBytes + bytes.length > maxBytes || !today.equals(fileDate))) {
+                rotate();
+            }
+            if (out == null) {
+                openFile();
+            }
+            out.write(bytes);
+            fileBytes += bytes.length;
+        } catch (IOException e) {
+            // Try a fresh file with the next batch
+            System.err.println("Failed to write log: " + e.getMessage());
+            closeFile();
+        }
+    }
+    
+    // Formatting is the expensive part, so it is reused while the second doesn't change
+    private String timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != lastSecond) {
+            lastSecond = second;
+            lastTimestamp = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()).format(TIMESTAMP);
+        }
+        return lastTimestamp;
+    }
+    
+    private void openFile() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        out = new FileOutputStream(file.toFile(), true);
+        fileBytes = Files.size(file);
+        fileDate = fileBytes > 0
+                ? LocalDateTime.ofInstant(Files.getLastModifiedTime(file).toInstant(), ZoneId.systemDefault()).toLocalDate()
+                : LocalDate.now();
+    }
+    
+    // server.log becomes server.log.1, server.log.1 becomes server.log.2 and so on
+    private void rotate() throws IOException {
+        closeFile();
+        String name = file.getFileName().toString();
+        Files.deleteIfExists(file.resolveSibling(name + "." + keep));
+        for (int i = keep - 1; i >= 1; i--) {
+            Path older = file.resolveSibling(name + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, file.resolveSibling(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (keep > 0) {
+            Files.move(file, file.resolveSibling(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Nothing is buffered in the stream
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,82 @@
+package server;
+
+import common.FileTransfer;
+import common.TransferCompression;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Compresses cold content at rest. Each pass looks for finished files older than the minimum age
+ * whose type is worth compressing and compacts their content in the {@link BlobStore}, one file at a
+ * time; file sizes, and so quotas, stay what they were.
+ */
+public class BlobCompactor implements Runnable {
+    
+    // Compacted content has to come out at most this much of its size
+    private static final double MAX_RATIO = 0.9;
+    
+    private final BlobStore store;
+    private final Supplier<Collection<FileTransfer>> files;
+    private final Duration minAge;
+    private final TransferCompression codec;
+    private final Consumer<String> log;
+    // Content compacted or found not worth it, so later passes skip it; only ever touched by run(), and
+    // pruned to the content still stored after every pass
+    private Set<String> done = new HashSet<>();
+    
+    /**
+     * @param level Deflater level; compaction runs once per file, so it can afford a slow one
+     */
+    public BlobCompactor(BlobStore store, Supplier<Collection<FileTransfer>> files, Duration minAge, int level,
+                         Consumer<String> log) {
+        this.store = store;
+        this.files = files;
+        this.minAge = minAge;
+        // On the compactor's own thread, one frame at a time
+        this.codec = new TransferCompression(Runnable::run, level, 1);
+        this.log = log;
+    }
+    
+    @Override
+    public void run() {
+        LocalDateTime coldBefore = LocalDateTime.now().minus(minAge);
+        int compacted = 0;
+        long saved = 0;
+        Set<String> stillDone = new HashSet<>();
+        for (FileTransfer transfer : files.get()) {
+            String hash = transfer.getContentHash();
+            if (hash != null && done.contains(hash)) {
+                stillDone.add(hash);
+                continue;
+            }
+            if (hash == null || !"COMPLETED".equals(transfer.getStatus())
+                    || transfer.getTimestamp().isAfter(coldBefore)
+                    || TransferCompression.policyFor(transfer.getFileType()) == TransferCompression.Policy.SKIP) {
+                continue;
+            }
+            try {
+                long bytes = store.compact(hash, codec, MAX_RATIO);
+                stillDone.add(hash);
+                if (bytes > 0) {
+                    compacted++;
+                    saved += bytes;
+                }
+            } catch (IOException | RuntimeException e) {
+                // Tried again on the next pass
+                log.accept("Error compacting " + transfer.getFileName() + ": " + e.getMessage());
+            }
+        }
+        // Content whose last file went away is forgotten with it
+        done = stillDone;
+        if (compacted > 0) {
+            log.accept("Compacted " + compacted + " files, saved " + saved / (1024 * 1024) + " MB");
+        }
+    }
+}
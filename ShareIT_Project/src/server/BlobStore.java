@@ -0,0 +1,585 @@
+package server;
+
+import common.ChannelIO;
+import common.ContentHasher;
+import common.TransferCompression;
+import security.ChunkedEncryption;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content addressed file storage. Every distinct content is stored once under its SHA-256 and
+ * reference counted by the transfers pointing at it; the file goes away with the last reference.
+ * The SHA-256 of every {@link ContentHasher#CHUNK_SIZE} chunk is indexed too, so an upload can
+ * reuse chunks of content the store already has.
+ *
+ * With an encryption key, new content is encrypted on its way to disk with {@link ChunkedEncryption}
+ * and decrypted when read; content stored before the key was set stays readable as it is. Encrypted
+ * content has its own file name, like compacted content below.
+ *
+ * Plaintext content can be compacted later on: rewritten as {@link TransferCompression} frames, the
+ * same frames a compressed download carries, followed by the file offset of every frame. Compacted
+ * content reads as before, decompressed a frame at a time, and frame aligned ranges can be sent
+ * without decompressing at all. It is kept under its own file name, so the format never depends on
+ * what the stored bytes happen to start with.
+ */
+public class BlobStore {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Compacted content: magic, raw length, the frames, then a long per frame with its offset
+    private static final byte[] COMPRESSED_MAGIC = {'S', 'H', 'Z', '1'};
+    private static final String COMPRESSED_SUFFIX = ".shz";
+    private static final String ENCRYPTED_SUFFIX = ".enc";
+    private static final int COMPRESSED_HEADER_SIZE = 12;
+    
+    private final Path blobDir;
+    private final Path incomingDir;
+    private final Map<String, Integer> refCounts = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> blobChunks = new ConcurrentHashMap<>();
+    private final Map<String, ChunkRef> chunkIndex = new ConcurrentHashMap<>();
+    private final ChunkedEncryption encryption; // null stores plaintext
+    
+    public BlobStore(Path root) {
+        this(root, null);
+    }
+    
+    public BlobStore(Path root, ChunkedEncryption encryption) {
+        this.encryption = encryption;
+        this.blobDir = root.resolve("blobs");
+        this.incomingDir = root.resolve("incoming");
+        try {
+            Files.createDirectories(blobDir);
+            Files.createDirectories(incomingDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public Path blobPath(String hash) {
+        return blobDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+    
+    private Path compressedPath(String hash) {
+        return blobDir.resolve(hash.substring(0, 2)).resolve(hash + COMPRESSED_SUFFIX);
+    }
+    
+    private Path encryptedPath(String hash) {
+        return blobDir.resolve(hash.substring(0, 2)).resolve(hash + ENCRYPTED_SUFFIX);
+    }
+    
+    // Streams exactly size bytes into the store, hashing on the way in; returns the content hash
+    public String ingest(ReadableByteChannel source, long size) throws IOException {
+        Path temp = Files.createTempFile(incomingDir, "upload", ".tmp");
+        try {
+            ContentHasher hasher = new ContentHasher();
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                if (encryption == null) {
+                    ChannelIO.receiveFile(source, file, 0, size, hasher::update, ByteBuffer.allocateDirect(BUFFER_SIZE));
+                } else {
+                    receiveEncrypted(source, file, size, hasher);
+                }
+            }
+            return commit(temp, hasher, encryption != null);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    // Moves an already written file (e.g. a finished chunked upload) into the store
+    public String ingestFile(Path file) throws IOException {
+        if (encryption != null) {
+            // Encrypted into a new file while hashing, the plaintext goes away afterwards
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return ingest(channel, channel.size());
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+        ContentHasher hasher = new ContentHasher();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.clear();
+            }
+        }
+        try {
+            return commit(file, hasher, false);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    /**
+     * Opens stored content for reading. Fails with NoSuchFileException if the store doesn't have it.
+     */
+    public Content open(String hash) throws IOException {
+        try {
+            // Encrypted content is never compacted, so it never moves
+            return open(encryptedPath(hash), true, false);
+        } catch (NoSuchFileException e) {
+            // Stored in plaintext
+        }
+        try {
+            return open(compressedPath(hash), false, true);
+        } catch (NoSuchFileException e) {
+            try {
+                return open(blobPath(hash), false, false);
+            } catch (NoSuchFileException compacted) {
+                // Compaction moves content to its compressed file before deleting the plain one
+                return open(compressedPath(hash), false, true);
+            }
+        }
+    }
+    
+    private Content open(Path file, boolean encrypted, boolean compressed) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (encrypted) {
+                return new Content(channel, true, false, ChunkedEncryption.plaintextLength(channel));
+            }
+            if (compressed) {
+                return new Content(channel, false, true, compressedLength(channel));
+            }
+            return new Content(channel, false, false, channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * An open piece of content. Stays readable even if its last reference is released meanwhile.
+     */
+    public class Content implements Closeable {
+        private final FileChannel channel;
+        private final boolean encrypted;
+        private final boolean compressed;
+        private final long size;
+        
+        Content(FileChannel channel, boolean encrypted, boolean compressed, long size) {
+            this.channel = channel;
+            this.encrypted = encrypted;
+            this.compressed = compressed;
+            this.size = size;
+        }
+        
+        // Plaintext size
+        public long size() {
+            return size;
+        }
+        
+        public boolean isCompressed() {
+            return compressed;
+        }
+        
+        // Sends count bytes from position; plaintext goes out zero-copy, encrypted content is verified
+        // chunk by chunk and compacted content decompressed frame by frame
+        public void sendTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (compressed) {
+                sendDecompressed(position, count, target);
+            } else if (encrypted) {
+                if (encryption == null) {
+                    throw new IOException("Content is encrypted but no key is configured");
+                }
+                encryption.decrypt(channel, position, count, target);
+            } else {
+                ChannelIO.sendFile(channel, position, count, target);
+            }
+        }
+        
+        // Fills target with the bytes from position; safe to call from several threads at once
+        public void read(long position, ByteBuffer target) throws IOException {
+            int count = target.remaining();
+            if (encrypted || compressed) {
+                sendTo(position, count, new BufferWriter(target));
+                return;
+            }
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + count - target.remaining()) < 0) {
+                    throw new EOFException("Content shorter than expected");
+                }
+            }
+        }
+        
+        /**
+         * Sends the stored frames holding count bytes from position as they are, zero-copy; returns
+         * the bytes sent, or -1 without sending anything if the content isn't compacted or the range
+         * doesn't start and end on frame boundaries.
+         */
+        public long sendFrames(long position, long count, WritableByteChannel target) throws IOException {
+            long end = position + count;
+            if (!compressed || position % TransferCompression.FRAME_SIZE != 0
+                    || (end % TransferCompression.FRAME_SIZE != 0 && end != size) || end > size) {
+                return -1;
+            }
+            long from = frameOffset(position / TransferCompression.FRAME_SIZE);
+            long to = frameOffset((end + TransferCompression.FRAME_SIZE - 1) / TransferCompression.FRAME_SIZE);
+            ChannelIO.sendFile(channel, from, to - from, target);
+            return to - from;
+        }
+        
+        private void sendDecompressed(long position, long count, WritableByteChannel target) throws IOException {
+            long end = position + count;
+            if (position < 0 || count < 0 || end > size) {
+                throw new EOFException("Range past the end of the content");
+            }
+            ByteBuffer header = ByteBuffer.allocate(TransferCompression.HEADER_SIZE);
+            for (long frame = position / TransferCompression.FRAME_SIZE; frame * TransferCompression.FRAME_SIZE < end; frame++) {
+                long offset = frameOffset(frame);
+                header.clear();
+                readFully(channel, header, offset);
+                int rawLength = header.getInt(0);
+                int storedLength = header.getInt(4);
+                ByteBuffer body = ByteBuffer.allocate(storedLength == 0 ? rawLength : storedLength);
+                readFully(channel, body, offset + TransferCompression.HEADER_SIZE);
+                ByteBuffer raw = TransferCompression.decode(body.flip(), rawLength, storedLength);
+                
+                long frameStart = frame * TransferCompression.FRAME_SIZE;
+                raw.limit((int) (Math.min(end, frameStart + rawLength) - frameStart));
+                raw.position((int) (Math.max(position, frameStart) - frameStart));
+                while (raw.hasRemaining()) {
+                    target.write(raw);
+                }
+            }
+        }
+        
+        // Where a frame starts in the file; one past the last frame is where the offsets start
+        private long frameOffset(long frame) throws IOException {
+            long frames = frameCount(size);
+            long indexStart = channel.size() - frames * Long.BYTES;
+            if (frame >= frames) {
+                return indexStart;
+            }
+            ByteBuffer offset = ByteBuffer.allocate(Long.BYTES);
+            readFully(channel, offset, indexStart + frame * Long.BYTES);
+            return offset.getLong(0);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Rewrites plaintext content as compressed frames if that makes it at most maxRatio of its size;
+     * returns the bytes saved, 0 if the content was left as it is. Readers that have the content open
+     * keep reading the old file.
+     */
+    public long compact(String hash, TransferCompression codec, double maxRatio) throws IOException {
+        Path temp = Files.createTempFile(incomingDir, "compact", ".tmp");
+        try {
+            long raw;
+            long stored;
+            try (Content content = open(hash); FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                raw = content.size();
+                if (content.encrypted || content.compressed || raw == 0) {
+                    return 0;
+                }
+                ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_SIZE).put(COMPRESSED_MAGIC).putLong(raw).flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                codec.send(content::read, raw, TransferCompression.Policy.COMPRESS, out);
+                
+                // The offsets, found by walking the frame headers
+                ByteBuffer index = ByteBuffer.allocate((int) frameCount(raw) * Long.BYTES);
+                ByteBuffer frame = ByteBuffer.allocate(TransferCompression.HEADER_SIZE);
+                long offset = COMPRESSED_HEADER_SIZE;
+                while (index.hasRemaining()) {
+                    index.putLong(offset);
+                    frame.clear();
+                    readFully(out, frame, offset);
+                    int storedLength = frame.getInt(4);
+                    offset += TransferCompression.HEADER_SIZE + (storedLength == 0 ? frame.getInt(0) : storedLength);
+                }
+                index.flip();
+                while (index.hasRemaining()) {
+                    out.write(index, offset + index.position());
+                }
+                out.force(true);
+                stored = out.size();
+            }
+            if (stored > raw * maxRatio) {
+                return 0;
+            }
+            // Only while still referenced, or a concurrent release would find its file back
+            boolean[] replaced = {false};
+            refCounts.computeIfPresent(hash, (k, count) -> {
+                try {
+                    Files.move(temp, compressedPath(hash), StandardCopyOption.ATOMIC_MOVE);
+                    Files.delete(blobPath(hash));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                replaced[0] = true;
+                return count;
+            });
+            return replaced[0] ? raw - stored : 0;
+        } catch (NoSuchFileException e) {
+            // Released while we were looking
+            return 0;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    // Adds a reference to stored content of the given size; false if the store doesn't have it
+    public boolean retain(String hash, long size) {
+        boolean[] retained = {false};
+        refCounts.computeIfPresent(hash, (k, count) -> {
+            if (!sizeMatches(hash, size)) {
+                return count;
+            }
+            retained[0] = true;
+            return count + 1;
+        });
+        return retained[0];
+    }
+    
+    // Deletes what ingests and compactions cut off by a restart left in the incoming directory;
+    // only safe before the store is used. Returns the files deleted.
+    public int clearIncoming() throws IOException {
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(incomingDir)) {
+            for (Path file : files) {
+                Files.delete(file);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+    
+    // Counts a reference recovered at startup; false if the content is gone. Recovered content isn't
+    // chunk indexed again, so only new uploads offer chunks for reuse.
+    public boolean restore(String hash, long size) {
+        if (!sizeMatches(hash, size)) {
+            return false;
+        }
+        refCounts.merge(hash, 1, Integer::sum);
+        return true;
+    }
+    
+    public void release(String hash) {
+        refCounts.computeIfPresent(hash, (k, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            List<String> chunks = blobChunks.remove(hash);
+            if (chunks != null) {
+                for (String chunk : chunks) {
+                    chunkIndex.computeIfPresent(chunk, (c, ref) -> ref.blobHash.equals(hash) ? null : ref);
+                }
+            }
+            try {
+                Files.deleteIfExists(encryptedPath(hash));
+                Files.deleteIfExists(compressedPath(hash));
+                Files.deleteIfExists(blobPath(hash));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+    }
+    
+    // Copies a chunk with the given hash and length from stored content into target at position.
+    // Returns false if no stored content has such a chunk.
+    public boolean copyChunk(String chunkHash, int length, FileChannel target, long position) throws IOException {
+        ChunkRef ref = chunkIndex.get(chunkHash);
+        if (ref == null || ref.length != length) {
+            return false;
+        }
+        try (Content content = open(ref.blobHash)) {
+            if (content.encrypted && encryption == null) {
+                return false;
+            }
+            if (content.encrypted || content.compressed) {
+                content.sendTo(ref.offset, length, new PositionedWriter(target, position));
+                return true;
+            }
+            // File to file copy, stays in the kernel where the OS supports it
+            FileChannel source = content.channel;
+            source.position(ref.offset);
+            long copied = 0;
+            while (copied < length) {
+                long n = target.transferFrom(source, position + copied, length - copied);
+                if (n <= 0) {
+                    return false;
+                }
+                copied += n;
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            // Released while we were looking
+            return false;
+        }
+    }
+    
+    private boolean sizeMatches(String hash, long size) {
+        try (Content content = open(hash)) {
+            return content.size() == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    // Raw length stored in the header of compacted content
+    private static long compressedLength(FileChannel file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_SIZE);
+        readFully(file, header, 0);
+        if (!Arrays.equals(Arrays.copyOf(header.array(), COMPRESSED_MAGIC.length), COMPRESSED_MAGIC)) {
+            throw new IOException("Compacted content has a bad header");
+        }
+        return header.getLong(COMPRESSED_MAGIC.length);
+    }
+    
+    private static long frameCount(long rawLength) {
+        return (rawLength + TransferCompression.FRAME_SIZE - 1) / TransferCompression.FRAME_SIZE;
+    }
+    
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("Stored content is truncated");
+            }
+        }
+    }
+    
+    private void receiveEncrypted(ReadableByteChannel source, FileChannel file, long size, ContentHasher hasher) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (ChunkedEncryption.Encryptor encryptor = encryption.encrypt(file, size)) {
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                if (source.read(buffer) < 0) {
+                    throw new EOFException("Connection closed after " + (size - remaining) + " of " + size + " bytes");
+                }
+                buffer.flip();
+                remaining -= buffer.remaining();
+                hasher.update(buffer.duplicate());
+                encryptor.update(buffer);
+            }
+            encryptor.finish();
+        }
+    }
+    
+    private String commit(Path file, ContentHasher hasher, boolean encrypted) {
+        String hash = hasher.finish();
+        List<String> chunks = hasher.getChunkHashes();
+        refCounts.compute(hash, (k, count) -> {
+            if (count != null) {
+                return count + 1;
+            }
+            try {
+                Path blob = encrypted ? encryptedPath(hash) : blobPath(hash);
+                // Content left from before a restart is the same bytes, whichever form it is in
+                if (!Files.exists(blobPath(hash)) && !Files.exists(compressedPath(hash)) && !Files.exists(encryptedPath(hash))) {
+                    Files.createDirectories(blob.getParent());
+                    Files.move(file, blob, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            indexChunks(hash, chunks);
+            return 1;
+        });
+        return hash;
+    }
+    
+    private void indexChunks(String hash, List<String> chunks) {
+        long size;
+        try (Content content = open(hash)) {
+            size = content.size();
+        } catch (IOException e) {
+            return;
+        }
+        blobChunks.put(hash, chunks);
+        for (int i = 0; i < chunks.size(); i++) {
+            long offset = (long) i * ContentHasher.CHUNK_SIZE;
+            int length = (int) Math.min(ContentHasher.CHUNK_SIZE, size - offset);
+            chunkIndex.putIfAbsent(chunks.get(i), new ChunkRef(hash, offset, length));
+        }
+    }
+    
+    // Writes consecutive bytes into a file starting at a position
+    private static class PositionedWriter implements WritableByteChannel {
+        private final FileChannel file;
+        private long position;
+        
+        PositionedWriter(FileChannel file, long position) {
+            this.file = file;
+            this.position = position;
+        }
+        
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int written = file.write(source, position);
+            position += written;
+            return written;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+        
+        @Override
+        public void close() {
+            // The caller owns the file
+        }
+    }
+    
+    // Copies into a buffer that has room for everything written
+    private static class BufferWriter implements WritableByteChannel {
+        private final ByteBuffer target;
+        
+        BufferWriter(ByteBuffer target) {
+            this.target = target;
+        }
+        
+        @Override
+        public int write(ByteBuffer source) {
+            int n = source.remaining();
+            target.put(source);
+            return n;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+    
+    private static class ChunkRef {
+        final String blobHash;
+        final long offset;
+        final int length;
+        
+        ChunkRef(String blobHash, long offset, int length) {
+            this.blobHash = blobHash;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
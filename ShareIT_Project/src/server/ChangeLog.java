@@ -0,0 +1,94 @@
+package server;
+
+import common.FileTransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Versioned log of recent changes that clients poll with "changes since version N" instead of
+ * re-reading the full file and user lists. Only the newest changes are kept; a client that fell
+ * further behind is told to reload everything.
+ */
+public class ChangeLog {
+    
+    public enum Type { FILE_ADDED, FILE_REMOVED, USER_UPDATED }
+    
+    public static class Change {
+        public final long version;
+        public final Type type;
+        public final FileTransfer transfer; // File changes
+        public final String username;       // User changes
+        
+        Change(long version, Type type, FileTransfer transfer, String username) {
+            this.version = version;
+            this.type = type;
+            this.transfer = transfer;
+            this.username = username;
+        }
+        
+        // File changes concern sender, receiver and public shares; user rows are seen by everyone
+        public boolean isVisibleTo(String user) {
+            if (type == Type.USER_UPDATED) {
+                return true;
+            }
+            String receiver = transfer.getReceiver();
+            return receiver.equals("public") || receiver.equals(user) || transfer.getSender().equals(user);
+        }
+    }
+    
+    private final Change[] ring;
+    private long version;
+    private volatile Consumer<Change> listener;
+    
+    public ChangeLog(int capacity) {
+        this.ring = new Change[capacity];
+    }
+    
+    // Called with every new change in version order, while the log is locked
+    public void setListener(Consumer<Change> listener) {
+        this.listener = listener;
+    }
+    
+    public void fileAdded(FileTransfer transfer) {
+        append(Type.FILE_ADDED, transfer, null);
+    }
+    
+    public void fileRemoved(FileTransfer transfer) {
+        append(Type.FILE_REMOVED, transfer, null);
+    }
+    
+    // Registration, presence and storage changes all publish the user's current row
+    public void userUpdated(String username) {
+        append(Type.USER_UPDATED, null, username);
+    }
+    
+    public synchronized long currentVersion() {
+        return version;
+    }
+    
+    /**
+     * Changes after the given version, or null if they are no longer all in the log.
+     */
+    public synchronized List<Change> since(long since) {
+        if (since < version - ring.length || since > version || since < 0) {
+            return null;
+        }
+        List<Change> changes = new ArrayList<>((int) (version - since));
+        for (long v = since + 1; v <= version; v++) {
+            changes.add(ring[(int) (v % ring.length)]);
+        }
+        return changes;
+    }
+    
+    private synchronized void append(Type type, FileTransfer transfer, String username) {
+        version++;
+        Change change = new Change(version, type, transfer, username);
+        ring[(int) (version % ring.length)] = change;
+        Consumer<Change> current = listener;
+        if (current != null) {
+            current.accept(change);
+        }
+    }
+}
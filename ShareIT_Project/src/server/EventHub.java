@@ -0,0 +1,180 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes changes to subscribed clients as they happen so they don't have to poll. Every subscriber
+ * has a bounded queue that a shared pool drains in batches; a subscriber that falls too far behind
+ * loses its queued events and is told to catch up with CHANGES_SINCE instead. One whose writes
+ * stall for longer than the write timeout is dropped, so it can't hold a pusher thread for good.
+ */
+public class EventHub {
+    
+    public interface EventWriter {
+        void write(DataOutputStream out, ChangeLog.Change change) throws IOException;
+    }
+    
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final ExecutorService pushers;
+    private final EventWriter writer;
+    private final int queueCapacity;
+    private final long writeTimeoutNanos;
+    
+    public EventHub(ExecutorService pushers, EventWriter writer, int queueCapacity, long writeTimeoutMillis) {
+        this.pushers = pushers;
+        this.writer = writer;
+        this.queueCapacity = queueCapacity;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+    }
+    
+    /**
+     * Turns the connection into an event stream for the user. The reply is written before any event,
+     * and every change published after this call is delivered.
+     */
+    public void subscribe(String username, Socket socket, DataOutputStream out) throws IOException {
+        Subscriber subscriber = new Subscriber(username, socket, out);
+        subscribers.add(subscriber);
+        subscriber.writingSince = System.nanoTime();
+        try {
+            out.writeUTF("SUCCESS: Subscribed");
+            out.flush();
+        } catch (IOException e) {
+            subscriber.close();
+            throw e;
+        } finally {
+            subscriber.writingSince = 0;
+        }
+        subscriber.resume();
+    }
+    
+    public void publish(ChangeLog.Change change) {
+        for (Subscriber subscriber : subscribers) {
+            if (change.isVisibleTo(subscriber.username)) {
+                subscriber.offer(change);
+            }
+        }
+    }
+    
+    /**
+     * Drops the subscribers stuck in a write for longer than the write timeout; closing the socket
+     * fails the write and frees its pusher. Meant to run every so often.
+     */
+    public void closeStalled() {
+        long now = System.nanoTime();
+        for (Subscriber subscriber : subscribers) {
+            long since = subscriber.writingSince;
+            if (since != 0 && now - since > writeTimeoutNanos) {
+                subscriber.close();
+            }
+        }
+    }
+    
+    private class Subscriber implements Runnable {
+        final String username;
+        final Socket socket;
+        final DataOutputStream out;
+        // Guarded by this
+        final Queue<ChangeLog.Change> queue = new ArrayDeque<>();
+        boolean overflowed;
+        // Starts out scheduled so nothing is pushed before the subscribe reply
+        boolean scheduled = true;
+        // When the write in progress started, or 0 between writes
+        volatile long writingSince;
+        
+        Subscriber(String username, Socket socket, DataOutputStream out) {
+            this.username = username;
+            this.socket = socket;
+            this.out = out;
+        }
+        
+        void offer(ChangeLog.Change change) {
+            synchronized (this) {
+                if (queue.size() >= queueCapacity) {
+                    // The client resyncs from its last version, so the backlog isn't needed
+                    queue.clear();
+                    overflowed = true;
+                } else {
+                    queue.add(change);
+                }
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            schedule();
+        }
+        
+        void resume() {
+            synchronized (this) {
+                if (queue.isEmpty() && !overflowed) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            schedule();
+        }
+        
+        private void schedule() {
+            try {
+                pushers.execute(this);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+        
+        @Override
+        public void run() {
+            while (true) {
+                List<ChangeLog.Change> batch;
+                boolean resync;
+                synchronized (this) {
+                    if (queue.isEmpty() && !overflowed) {
+                        scheduled = false;
+                        return;
+                    }
+                    batch = new ArrayList<>(queue);
+                    queue.clear();
+                    resync = overflowed;
+                    overflowed = false;
+                }
+                
+                writingSince = System.nanoTime();
+                try {
+                    if (resync) {
+                        out.writeUTF("RESYNC");
+                    }
+                    for (ChangeLog.Change change : batch) {
+                        out.writeUTF("EVENT");
+                        out.writeLong(change.version);
+                        writer.write(out, change);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                    return;
+                } finally {
+                    writingSince = 0;
+                }
+            }
+        }
+        
+        void close() {
+            subscribers.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
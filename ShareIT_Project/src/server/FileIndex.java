@@ -0,0 +1,390 @@
+package server;
+
+import common.FileTransfer;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary indexes over the transfers: by sender, by receiver, by file type and the public pool.
+ * Every index keeps its transfers sorted by timestamp, size and name, so listing what a user can
+ * see only touches the transfers visible to that user, and a page only touches about one page of them.
+ * A page filtered by type or sender walks those indexes instead, intersected in sort order.
+ */
+public class FileIndex {
+    private static final String PUBLIC = "public";
+    
+    public enum SortKey {
+        TIMESTAMP(Comparator.comparing(FileTransfer::getTimestamp)),
+        SIZE(Comparator.comparingLong(FileTransfer::getFileSize)),
+        NAME(Comparator.comparing(FileTransfer::getFileName, String.CASE_INSENSITIVE_ORDER));
+        
+        // Ties are broken by fileId so every transfer has exactly one place in the order
+        final Comparator<FileTransfer> order;
+        
+        SortKey(Comparator<FileTransfer> order) {
+            this.order = order.thenComparing(FileTransfer::getFileId);
+        }
+    }
+    
+    public static class Page {
+        public final List<FileTransfer> files;
+        public final String nextCursor; // Empty when there is nothing after this page
+        
+        Page(List<FileTransfer> files, String nextCursor) {
+            this.files = files;
+            this.nextCursor = nextCursor;
+        }
+    }
+    
+    private final Map<String, Bucket> bySender = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> byReceiver = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> byType = new ConcurrentHashMap<>();
+    private final Bucket publicFiles = new Bucket();
+    
+    public void add(FileTransfer transfer) {
+        addTo(bySender, transfer.getSender(), transfer);
+        addTo(byType, typeKey(transfer.getFileType()), transfer);
+        if (PUBLIC.equals(transfer.getReceiver())) {
+            publicFiles.add(transfer);
+        } else {
+            addTo(byReceiver, transfer.getReceiver(), transfer);
+        }
+    }
+    
+    public void remove(FileTransfer transfer) {
+        removeFrom(bySender, transfer.getSender(), transfer);
+        removeFrom(byType, typeKey(transfer.getFileType()), transfer);
+        if (PUBLIC.equals(transfer.getReceiver())) {
+            publicFiles.remove(transfer);
+        } else {
+            removeFrom(byReceiver, transfer.getReceiver(), transfer);
+        }
+    }
+    
+    public int countSentBy(String username) {
+        Bucket sent = bySender.get(username);
+        return sent == null ? 0 : sent.size();
+    }
+    
+    // Public files, files sent to the user and files the user sent, each exactly once
+    public List<FileTransfer> visibleTo(String username) {
+        List<FileTransfer> visible = new ArrayList<>();
+        Iterator<FileTransfer> it = merged(username, SortKey.TIMESTAMP, false, null);
+        while (it.hasNext()) {
+            visible.add(it.next());
+        }
+        return visible;
+    }
+    
+    /**
+     * One page of the files visible to the user in the given order, starting after the cursor.
+     * Empty filter strings match everything; the name prefix is case-insensitive.
+     */
+    public Page page(String username, SortKey sortKey, boolean descending, String cursor, int pageSize,
+                     String fileType, String sender, String namePrefix) {
+        FileTransfer from = null;
+        if (!cursor.isEmpty()) {
+            from = decodeCursor(cursor, sortKey);
+        } else if (sortKey == SortKey.NAME && !descending && !namePrefix.isEmpty()) {
+            // Names are sorted, so start right at the prefix instead of scanning up to it
+            from = probe("", namePrefix, 0, LocalDateTime.MIN);
+        }
+        
+        List<FileTransfer> files = new ArrayList<>(pageSize);
+        Iterator<FileTransfer> it = fileType.isEmpty() && sender.isEmpty()
+                ? merged(username, sortKey, descending, from)
+                : filtered(username, sortKey, descending, from, fileType, sender);
+        FileTransfer last = null;
+        while (it.hasNext()) {
+            FileTransfer transfer = it.next();
+            if (!namePrefix.isEmpty() && !transfer.getFileName().regionMatches(true, 0, namePrefix, 0, namePrefix.length())) {
+                if (sortKey == SortKey.NAME && !descending) {
+                    break; // Past the prefix range
+                }
+                continue;
+            }
+            if (!fileType.isEmpty() && !fileType.equalsIgnoreCase(transfer.getFileType())) {
+                continue;
+            }
+            if (!sender.isEmpty() && !sender.equals(transfer.getSender())) {
+                continue;
+            }
+            if (files.size() == pageSize) {
+                return new Page(files, encodeCursor(last, sortKey));
+            }
+            files.add(transfer);
+            last = transfer;
+        }
+        return new Page(files, "");
+    }
+    
+    // The files of the type and sender filters that the user can see, from the intersection of their indexes
+    private Iterator<FileTransfer> filtered(String username, SortKey sortKey, boolean descending, FileTransfer after,
+                                            String fileType, String sender) {
+        List<NavigableSet<FileTransfer>> sets = new ArrayList<>(2);
+        for (Bucket bucket : Arrays.asList(fileType.isEmpty() ? null : byType.get(typeKey(fileType)),
+                                           sender.isEmpty() ? null : bySender.get(sender))) {
+            if (bucket != null) {
+                sets.add(view(bucket, sortKey, descending, after));
+            }
+        }
+        int wanted = (fileType.isEmpty() ? 0 : 1) + (sender.isEmpty() ? 0 : 1);
+        if (sets.size() < wanted) {
+            return Collections.emptyIterator();
+        }
+        
+        Comparator<FileTransfer> order = descending ? sortKey.order.reversed() : sortKey.order;
+        Iterator<FileTransfer> matches = new Intersection(sets, order);
+        return new Iterator<FileTransfer>() {
+            private FileTransfer next = advance();
+            
+            private FileTransfer advance() {
+                while (matches.hasNext()) {
+                    FileTransfer candidate = matches.next();
+                    if (PUBLIC.equals(candidate.getReceiver()) || username.equals(candidate.getReceiver())
+                            || username.equals(candidate.getSender())) {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+            
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+            
+            @Override
+            public FileTransfer next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                FileTransfer current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+    
+    private static NavigableSet<FileTransfer> view(Bucket bucket, SortKey sortKey, boolean descending, FileTransfer after) {
+        NavigableSet<FileTransfer> set = bucket.sorted(sortKey);
+        if (descending) {
+            set = set.descendingSet();
+        }
+        return after != null ? set.tailSet(after, false) : set;
+    }
+    
+    // Merges the user's three sorted sources into one ordered, duplicate free sequence
+    private Iterator<FileTransfer> merged(String username, SortKey sortKey, boolean descending, FileTransfer after) {
+        Comparator<FileTransfer> order = descending ? sortKey.order.reversed() : sortKey.order;
+        List<Iterator<FileTransfer>> sources = new ArrayList<>(3);
+        for (Bucket bucket : Arrays.asList(publicFiles, byReceiver.get(username), bySender.get(username))) {
+            if (bucket != null) {
+                sources.add(view(bucket, sortKey, descending, after).iterator());
+            }
+        }
+        
+        PriorityQueue<PeekingIterator> heads = new PriorityQueue<>((a, b) -> order.compare(a.peek, b.peek));
+        for (Iterator<FileTransfer> source : sources) {
+            if (source.hasNext()) {
+                heads.add(new PeekingIterator(source));
+            }
+        }
+        
+        return new Iterator<FileTransfer>() {
+            private FileTransfer previous;
+            private FileTransfer next = advance();
+            
+            private FileTransfer advance() {
+                while (!heads.isEmpty()) {
+                    PeekingIterator head = heads.poll();
+                    FileTransfer candidate = head.peek;
+                    if (head.advance()) {
+                        heads.add(head);
+                    }
+                    // A file sent to the public pool or to oneself sits in two sources; equal entries come out adjacent
+                    if (candidate != previous) {
+                        previous = candidate;
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+            
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+            
+            @Override
+            public FileTransfer next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                FileTransfer current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+    
+    // Types are kept upper case, and the filter matches them ignoring case
+    private static String typeKey(String fileType) {
+        return fileType.toUpperCase(Locale.ROOT);
+    }
+    
+    // A cursor carries the sort value of the last row, so it stays valid even if that file is deleted
+    private static String encodeCursor(FileTransfer last, SortKey sortKey) {
+        switch (sortKey) {
+            case SIZE:
+                return last.getFileId() + "|" + last.getFileSize();
+            case NAME:
+                return last.getFileId() + "|" + last.getFileName();
+            default:
+                return last.getFileId() + "|" + last.getTimestamp();
+        }
+    }
+    
+    private static FileTransfer decodeCursor(String cursor, SortKey sortKey) {
+        int split = cursor.indexOf('|');
+        if (split < 0) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        String fileId = cursor.substring(0, split);
+        String value = cursor.substring(split + 1);
+        switch (sortKey) {
+            case SIZE:
+                return probe(fileId, "", Long.parseLong(value), LocalDateTime.MIN);
+            case NAME:
+                return probe(fileId, value, 0, LocalDateTime.MIN);
+            default:
+                return probe(fileId, "", 0, LocalDateTime.parse(value));
+        }
+    }
+    
+    private static FileTransfer probe(String fileId, String fileName, long fileSize, LocalDateTime timestamp) {
+        return new FileTransfer(fileId, fileName, fileSize, "", "", timestamp);
+    }
+    
+    // Both run inside compute so an empty bucket is never dropped while another thread adds to it
+    private static void addTo(Map<String, Bucket> index, String key, FileTransfer transfer) {
+        index.compute(key, (k, bucket) -> {
+            Bucket target = bucket != null ? bucket : new Bucket();
+            target.add(transfer);
+            return target;
+        });
+    }
+    
+    private static void removeFrom(Map<String, Bucket> index, String key, FileTransfer transfer) {
+        index.computeIfPresent(key, (k, bucket) -> {
+            bucket.remove(transfer);
+            return bucket.size() == 0 ? null : bucket;
+        });
+    }
+    
+    private static class Bucket {
+        private final NavigableSet<FileTransfer> byTimestamp = new ConcurrentSkipListSet<>(SortKey.TIMESTAMP.order);
+        private final NavigableSet<FileTransfer> bySize = new ConcurrentSkipListSet<>(SortKey.SIZE.order);
+        private final NavigableSet<FileTransfer> byName = new ConcurrentSkipListSet<>(SortKey.NAME.order);
+        
+        void add(FileTransfer transfer) {
+            byTimestamp.add(transfer);
+            bySize.add(transfer);
+            byName.add(transfer);
+        }
+        
+        void remove(FileTransfer transfer) {
+            byTimestamp.remove(transfer);
+            bySize.remove(transfer);
+            byName.remove(transfer);
+        }
+        
+        int size() {
+            return byTimestamp.size();
+        }
+        
+        NavigableSet<FileTransfer> sorted(SortKey sortKey) {
+            switch (sortKey) {
+                case SIZE:
+                    return bySize;
+                case NAME:
+                    return byName;
+                default:
+                    return byTimestamp;
+            }
+        }
+    }
+    
+    /**
+     * The transfers in all of the sets, which share one order. Each set in turn seeks to the current
+     * candidate; when one lands past it, that entry becomes the candidate, so runs that are in only
+     * some of the sets are skipped by a lookup instead of being walked.
+     */
+    private static class Intersection implements Iterator<FileTransfer> {
+        private final List<NavigableSet<FileTransfer>> sets;
+        private final Comparator<FileTransfer> order;
+        private FileTransfer next;
+        
+        Intersection(List<NavigableSet<FileTransfer>> sets, Comparator<FileTransfer> order) {
+            this.sets = sets;
+            this.order = order;
+            this.next = seek(sets.get(0).isEmpty() ? null : sets.get(0).first());
+        }
+        
+        // The first transfer from candidate on that every set holds; candidate comes from the first set
+        private FileTransfer seek(FileTransfer candidate) {
+            int agreed = 1;
+            int i = 1 % sets.size();
+            while (candidate != null && agreed < sets.size()) {
+                FileTransfer found = sets.get(i).ceiling(candidate);
+                if (found == null) {
+                    return null;
+                }
+                if (order.compare(found, candidate) == 0) {
+                    agreed++;
+                } else {
+                    candidate = found;
+                    agreed = 1;
+                }
+                i = (i + 1) % sets.size();
+            }
+            return candidate;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        
+        @Override
+        public FileTransfer next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            FileTransfer current = next;
+            next = seek(sets.get(0).higher(current));
+            return current;
+        }
+    }
+    
+    private static class PeekingIterator {
+        private final Iterator<FileTransfer> source;
+        FileTransfer peek;
+        
+        PeekingIterator(Iterator<FileTransfer> source) {
+            this.source = source;
+            this.peek = source.next();
+        }
+        
+        boolean advance() {
+            if (!source.hasNext()) {
+                return false;
+            }
+            peek = source.next();
+            return true;
+        }
+    }
+}
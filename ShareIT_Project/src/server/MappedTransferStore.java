@@ -0,0 +1,292 @@
+package server;
+
+import common.FileTransfer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Optional off-heap home for finished transfers (-Dshareit.store=mapped). Every transfer is a fixed
+ * size record in a memory-mapped scratch file: fileId and content hash as raw bytes, the timestamp as
+ * epoch seconds, and sender, receiver and file type as ids into a table of interned strings. The heap
+ * only holds a small {@link Handle} per transfer whose getters read the record.
+ *
+ * The file is rebuilt from the metadata journal on every start. Records of deleted transfers are
+ * not reused, since other threads may still hold their handles.
+ *
+ * Status and content hash can still be set through a handle; the change goes to the record. A hash
+ * is 32 bytes, so it is written under a version that readers check, like a seqlock.
+ */
+public class MappedTransferStore {
+    
+    private static final int RECORD_SIZE = 256;
+    private static final int PAGE_SHIFT = 16; // 64K records (16 MB) per mapping
+    private static final int PAGE_RECORDS = 1 << PAGE_SHIFT;
+    
+    // Record layout
+    private static final int ID_MSB = 0, ID_LSB = 8, SIZE = 16, EPOCH_SECOND = 24, NANO = 32;
+    private static final int SENDER = 36, RECEIVER = 40, TYPE = 44, HASH = 48, HAS_HASH = 80;
+    private static final int STATUS = 84, HASH_VERSION = 88, NAME_LENGTH = 92, NAME = 94;
+    private static final int MAX_INLINE_NAME = RECORD_SIZE - NAME;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Fields a handle can change after it was stored, read and written with memory ordering
+    private static final VarHandle INT_FIELD = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] pages = new MappedByteBuffer[0];
+    private int records;
+    
+    // Interned strings, shared by all records; readers see entries through the volatile array
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private volatile String[] strings = new String[256];
+    private int stringCount;
+    
+    public MappedTransferStore(Path file) {
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Copies a finished transfer into the store and returns its handle. Transfers that don't fit the
+     * record layout (a fileId that isn't a UUID, an unusual hash) are returned unchanged and stay on the heap.
+     */
+    public synchronized FileTransfer store(FileTransfer transfer) {
+        UUID id;
+        try {
+            id = UUID.fromString(transfer.getFileId());
+        } catch (IllegalArgumentException e) {
+            return transfer;
+        }
+        String hash = transfer.getContentHash();
+        if (!id.toString().equals(transfer.getFileId()) || !fits(hash)) {
+            return transfer;
+        }
+        
+        int slot = records;
+        if ((slot >>> PAGE_SHIFT) == pages.length) {
+            addPage();
+        }
+        MappedByteBuffer page = pages[slot >>> PAGE_SHIFT];
+        int base = (slot & (PAGE_RECORDS - 1)) * RECORD_SIZE;
+        
+        page.putLong(base + ID_MSB, id.getMostSignificantBits());
+        page.putLong(base + ID_LSB, id.getLeastSignificantBits());
+        page.putLong(base + SIZE, transfer.getFileSize());
+        page.putLong(base + EPOCH_SECOND, transfer.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        page.putInt(base + NANO, transfer.getTimestamp().getNano());
+        page.putInt(base + SENDER, intern(transfer.getSender()));
+        page.putInt(base + RECEIVER, intern(transfer.getReceiver()));
+        page.putInt(base + TYPE, intern(transfer.getFileType()));
+        page.putInt(base + STATUS, intern(transfer.getStatus()));
+        page.putInt(base + HASH_VERSION, 0);
+        putHash(page, base, hash);
+        
+        byte[] name = transfer.getFileName().getBytes(StandardCharsets.UTF_8);
+        if (name.length <= MAX_INLINE_NAME) {
+            page.putShort(base + NAME_LENGTH, (short) name.length);
+            page.put(base + NAME, name);
+        } else {
+            // Rare long names go to the string table
+            page.putShort(base + NAME_LENGTH, (short) -1);
+            page.putInt(base + NAME, intern(transfer.getFileName()));
+        }
+        
+        records++;
+        return new Handle(slot);
+    }
+    
+    private static void putHash(MappedByteBuffer page, int base, String hash) {
+        page.put(base + HAS_HASH, (byte) (hash != null ? 1 : 0));
+        if (hash != null) {
+            for (int i = 0; i < 32; i++) {
+                page.put(base + HASH + i, (byte) Integer.parseInt(hash.substring(i * 2, i * 2 + 2), 16));
+            }
+        }
+    }
+    
+    // Whether a hash can be kept in a record
+    private static boolean fits(String hash) {
+        return hash == null || hash.matches("[0-9a-f]{64}");
+    }
+    
+    public synchronized int size() {
+        return records;
+    }
+    
+    private void addPage() {
+        try {
+            MappedByteBuffer page = channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) pages.length * PAGE_RECORDS * RECORD_SIZE, (long) PAGE_RECORDS * RECORD_SIZE);
+            MappedByteBuffer[] grown = Arrays.copyOf(pages, pages.length + 1);
+            grown[pages.length] = page;
+            pages = grown;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private int intern(String value) {
+        Integer id = stringIds.get(value);
+        if (id != null) {
+            return id;
+        }
+        String[] table = strings;
+        if (stringCount == table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        table[stringCount] = value;
+        strings = table;
+        stringIds.put(value, stringCount);
+        return stringCount++;
+    }
+    
+    /**
+     * A finished transfer whose fields live in the mapped record. Chunk state isn't kept, since only
+     * finished transfers are stored; serializing a handle writes a heap copy.
+     */
+    private class Handle extends FileTransfer {
+        private static final long serialVersionUID = 1L;
+        
+        private final int slot;
+        
+        Handle(int slot) {
+            this.slot = slot;
+        }
+        
+        private MappedByteBuffer page() {
+            return pages[slot >>> PAGE_SHIFT];
+        }
+        
+        private int base() {
+            return (slot & (PAGE_RECORDS - 1)) * RECORD_SIZE;
+        }
+        
+        @Override
+        public String getFileId() {
+            MappedByteBuffer page = page();
+            return new UUID(page.getLong(base() + ID_MSB), page.getLong(base() + ID_LSB)).toString();
+        }
+        
+        @Override
+        public String getFileName() {
+            MappedByteBuffer page = page();
+            int length = page.getShort(base() + NAME_LENGTH);
+            if (length < 0) {
+                return strings[page.getInt(base() + NAME)];
+            }
+            byte[] name = new byte[length];
+            page.get(base() + NAME, name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+        
+        @Override
+        public long getFileSize() {
+            return page().getLong(base() + SIZE);
+        }
+        
+        @Override
+        public String getSender() {
+            return strings[page().getInt(base() + SENDER)];
+        }
+        
+        @Override
+        public String getReceiver() {
+            return strings[page().getInt(base() + RECEIVER)];
+        }
+        
+        @Override
+        public LocalDateTime getTimestamp() {
+            MappedByteBuffer page = page();
+            return LocalDateTime.ofEpochSecond(page.getLong(base() + EPOCH_SECOND), page.getInt(base() + NANO), ZoneOffset.UTC);
+        }
+        
+        @Override
+        public String getStatus() {
+            return strings[(int) INT_FIELD.getAcquire(page(), base() + STATUS)];
+        }
+        
+        @Override
+        public String getFileType() {
+            return strings[page().getInt(base() + TYPE)];
+        }
+        
+        @Override
+        public String getContentHash() {
+            MappedByteBuffer page = page();
+            int base = base();
+            while (true) {
+                // An odd version means a write is under way
+                int version = (int) INT_FIELD.getAcquire(page, base + HASH_VERSION);
+                if ((version & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                String hash = null;
+                if (page.get(base + HAS_HASH) != 0) {
+                    char[] hex = new char[64];
+                    for (int i = 0; i < 32; i++) {
+                        int b = page.get(base + HASH + i) & 0xFF;
+                        hex[i * 2] = HEX[b >>> 4];
+                        hex[i * 2 + 1] = HEX[b & 0x0F];
+                    }
+                    hash = new String(hex);
+                }
+                VarHandle.loadLoadFence();
+                if ((int) INT_FIELD.getAcquire(page, base + HASH_VERSION) == version) {
+                    return hash;
+                }
+            }
+        }
+        
+        @Override
+        public void setStatus(String status) {
+            synchronized (MappedTransferStore.this) {
+                INT_FIELD.setRelease(page(), base() + STATUS, intern(status));
+            }
+        }
+        
+        @Override
+        public void setContentHash(String contentHash) {
+            if (!fits(contentHash)) {
+                throw new IllegalArgumentException("Not a SHA-256 hash: " + contentHash);
+            }
+            synchronized (MappedTransferStore.this) {
+                MappedByteBuffer page = page();
+                int base = base();
+                int version = page.getInt(base + HASH_VERSION);
+                INT_FIELD.setVolatile(page, base + HASH_VERSION, version + 1);
+                VarHandle.storeStoreFence();
+                putHash(page, base, contentHash);
+                INT_FIELD.setRelease(page, base + HASH_VERSION, version + 2);
+            }
+        }
+        
+        private Object writeReplace() {
+            FileTransfer copy = new FileTransfer(getFileId(), getFileName(), getFileSize(), getSender(), getReceiver(),
+                    getTimestamp());
+            copy.setStatus(getStatus());
+            copy.setContentHash(getContentHash());
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package server;
+
+import common.FileTransfer;
+import common.User;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of user and file metadata. Changes are appended as small checksummed records;
+ * a single writer thread writes whatever has piled up and syncs it to disk in one go, so concurrent
+ * callers waiting for durability share the fsync. When a journal segment grows past a limit a new
+ * segment is started and the current state is written as a {@link MetadataSnapshot}, after which
+ * older segments are deleted. Recovery opens the newest snapshot and replays the segments written after it.
+ *
+ * Records are idempotent upserts and deletes, so replaying a segment over a snapshot that already
+ * contains some of its changes gives the same result.
+ */
+public class MetadataJournal {
+    
+    // Receives recovered state in journal order
+    public interface Replay {
+        void snapshot(MetadataSnapshot snapshot);
+        // withStorage is false for records written before the storage used went with the user;
+        // the storage used known so far is kept then
+        void user(User user, boolean withStorage);
+        void storage(String username, long storageUsed);
+        void transfer(FileTransfer transfer);
+        void delete(String fileId);
+    }
+    
+    private static final byte USER = 1;
+    private static final byte STORAGE = 2;
+    private static final byte TRANSFER = 3;
+    private static final byte DELETE = 4;
+    // A user with the storage used; replaces USER, which is still read
+    private static final byte USER_STORAGE = 5;
+    private static final int MAX_RECORD = 1024 * 1024;
+    
+    private final Path dir;
+    private final long segmentLimit;
+    private final Supplier<Collection<User>> users;
+    private final Supplier<Collection<FileTransfer>> transfers;
+    private final Metrics.Histogram writeLatency;
+    
+    // Guarded by lock
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq, durableSeq;
+    private IOException failure;
+    private boolean closed;
+    
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentBytes;
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private Thread writer;
+    
+    /**
+     * The suppliers give the current server state when a snapshot is taken; every batch write and
+     * fsync is timed into writeLatency.
+     */
+    public MetadataJournal(Path dir, long segmentLimit, Supplier<Collection<User>> users, Supplier<Collection<FileTransfer>> transfers,
+                           Metrics.Histogram writeLatency) {
+        this.dir = dir;
+        this.segmentLimit = segmentLimit;
+        this.users = users;
+        this.transfers = transfers;
+        this.writeLatency = writeLatency;
+    }
+    
+    /**
+     * Replays the stored state and opens a new segment for appending.
+     */
+    public void recover(Replay replay) throws IOException {
+        Files.createDirectories(dir);
+        long snapshot = -1;
+        for (long number : list("snapshot-", ".dat")) {
+            snapshot = number;
+        }
+        if (snapshot >= 0) {
+            replay.snapshot(MetadataSnapshot.open(dir.resolve(fileName("snapshot-", snapshot, ".dat"))));
+        }
+        
+        long last = Math.max(snapshot - 1, 0);
+        for (long number : list("journal-", ".log")) {
+            if (number >= snapshot) {
+                // A torn record from a crash ends that segment; later segments still apply
+                readRecords(dir.resolve(fileName("journal-", number, ".log")), replay);
+            }
+            last = Math.max(last, number);
+        }
+        
+        openSegment(last + 1);
+        writer = new Thread(this::writeLoop, "metadata-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    public void logUser(User user) {
+        // Storage changes are logged under the user's lock too, so this can't undo a newer one
+        synchronized (user) {
+            append(USER_STORAGE, out -> {
+                writeUser(out, user);
+                out.writeLong(user.getStorageUsed());
+            });
+        }
+    }
+    
+    public void logStorage(User user) {
+        append(STORAGE, out -> {
+            out.writeUTF(user.getUsername());
+            out.writeLong(user.getStorageUsed());
+        });
+    }
+    
+    public void logTransfer(FileTransfer transfer) {
+        append(TRANSFER, out -> writeTransfer(out, transfer));
+    }
+    
+    public void logDelete(String fileId) {
+        append(DELETE, out -> out.writeUTF(fileId));
+    }
+    
+    // Blocks until everything logged so far is on disk
+    public void sync() throws IOException {
+        synchronized (lock) {
+            long seq = appendedSeq;
+            while (durableSeq < seq && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for journal");
+                }
+            }
+            if (failure != null && durableSeq < seq) {
+                throw failure;
+            }
+        }
+    }
+    
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            if (writer != null) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    private void append(byte type, Payload payload) {
+        byte[] record = encode(type, payload);
+        synchronized (lock) {
+            pending.write(record, 0, record.length);
+            appendedSeq++;
+            lock.notifyAll();
+        }
+    }
+    
+    // Length, CRC32 of the body, then type and payload
+    private static byte[] encode(byte type, Payload payload) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeByte(type);
+            payload.write(out);
+            byte[] bytes = body.toByteArray();
+            
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.length + 12);
+            DataOutputStream frame = new DataOutputStream(framed);
+            frame.writeInt(bytes.length);
+            frame.writeLong(crc.getValue());
+            frame.write(bytes);
+            return framed.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private void writeLoop() {
+        while (true) {
+            byte[] batch;
+            long seq;
+            synchronized (lock) {
+                while (pending.size() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.size() == 0) {
+                    break;
+                }
+                // Everything appended while the last batch was syncing goes out together
+                batch = pending.toByteArray();
+                pending = new ByteArrayOutputStream(Math.max(batch.length, 4096));
+                seq = appendedSeq;
+            }
+            
+            try {
+                long start = System.nanoTime();
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    segment.write(buffer);
+                }
+                segment.force(false);
+                writeLatency.recordSince(start);
+                segmentBytes += batch.length;
+                if (segmentBytes >= segmentLimit) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            
+            synchronized (lock) {
+                durableSeq = seq;
+                lock.notifyAll();
+            }
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            // Everything was synced already
+        }
+    }
+    
+    // Starts a new segment; the snapshot then covers everything before it
+    private void rotate() throws IOException {
+        if (!snapshotRunning.compareAndSet(false, true)) {
+            return;
+        }
+        segment.close();
+        long covered = segmentNumber + 1;
+        openSegment(covered);
+        
+        Thread snapshotter = new Thread(() -> {
+            try {
+                writeSnapshot(covered);
+            } catch (IOException | RuntimeException e) {
+                // The older segments stay until a snapshot succeeds
+                System.err.println("Metadata snapshot failed: " + e.getMessage());
+            } finally {
+                snapshotRunning.set(false);
+            }
+        }, "metadata-snapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+    
+    private void openSegment(long number) throws IOException {
+        segment = FileChannel.open(dir.resolve(fileName("journal-", number, ".log")),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentNumber = number;
+        segmentBytes = segment.size();
+    }
+    
+    // Current state as records; older snapshots and segments are deleted once it is safely on disk
+    private void writeSnapshot(long covered) throws IOException {
+        Path temp = dir.resolve("snapshot.tmp");
+        MetadataSnapshot.write(temp, users.get(), transfers.get());
+        Files.move(temp, dir.resolve(fileName("snapshot-", covered, ".dat")), StandardCopyOption.ATOMIC_MOVE);
+        
+        for (long number : list("snapshot-", ".dat")) {
+            if (number < covered) {
+                deleteQuietly(dir.resolve(fileName("snapshot-", number, ".dat")));
+            }
+        }
+        for (long number : list("journal-", ".log")) {
+            if (number < covered) {
+                deleteQuietly(dir.resolve(fileName("journal-", number, ".log")));
+            }
+        }
+    }
+    
+    // A snapshot still mapped by this process can't be deleted on every OS; the next snapshot tries again
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Could not delete " + file + ": " + e.getMessage());
+        }
+    }
+    
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeUTF(user.getUsername());
+        out.writeUTF(user.getPasswordHash());
+        out.writeUTF(user.getEmail());
+        out.writeLong(user.getRegistrationDate().toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(user.getRegistrationDate().getNano());
+        out.writeLong(user.getStorageLimit());
+    }
+    
+    private static User readUser(DataInputStream in) throws IOException {
+        return new User(in.readUTF(), in.readUTF(), in.readUTF(),
+                LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC), in.readLong());
+    }
+    
+    private static void writeTransfer(DataOutputStream out, FileTransfer transfer) throws IOException {
+        out.writeUTF(transfer.getFileId());
+        out.writeUTF(transfer.getFileName());
+        out.writeLong(transfer.getFileSize());
+        out.writeUTF(transfer.getSender());
+        out.writeUTF(transfer.getReceiver());
+        out.writeLong(transfer.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(transfer.getTimestamp().getNano());
+        out.writeUTF(transfer.getContentHash() != null ? transfer.getContentHash() : "");
+    }
+    
+    // Replays records until the end of the file or the first damaged record
+    private static void readRecords(Path file, Replay replay) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (true) {
+                byte[] bytes;
+                try {
+                    int length = in.readInt();
+                    long checksum = in.readLong();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        return;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    if (crc.getValue() != checksum) {
+                        return;
+                    }
+                } catch (EOFException e) {
+                    return;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(bytes)), replay);
+            }
+        }
+    }
+    
+    private static void apply(DataInputStream in, Replay replay) throws IOException {
+        switch (in.readByte()) {
+            case USER:
+                replay.user(readUser(in), false);
+                break;
+            case USER_STORAGE:
+                User user = readUser(in);
+                user.setStorageUsed(in.readLong());
+                replay.user(user, true);
+                break;
+            case STORAGE:
+                replay.storage(in.readUTF(), in.readLong());
+                break;
+            case TRANSFER:
+                FileTransfer transfer = new FileTransfer(in.readUTF(), in.readUTF(), in.readLong(),
+                        in.readUTF(), in.readUTF(), LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC));
+                String hash = in.readUTF();
+                transfer.setContentHash(hash.isEmpty() ? null : hash);
+                transfer.setStatus("COMPLETED");
+                replay.transfer(transfer);
+                break;
+            case DELETE:
+                replay.delete(in.readUTF());
+                break;
+            default:
+                // Unknown record from a newer version, skip it
+        }
+    }
+    
+    private List<Long> list(String prefix, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString())
+                 .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                 .forEach(name -> numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()))));
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+    
+    private static String fileName(String prefix, long number, String suffix) {
+        return String.format("%s%016d%s", prefix, number, suffix);
+    }
+}
@@ -0,0 +1,240 @@
+package server;
+
+import common.FileTransfer;
+import common.User;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary snapshot of the metadata. The user records are followed by a fixed-width index
+ * sorted by username hash, and that part of the file is memory-mapped so a single user can be
+ * looked up without reading the rest. File records come last and are read sequentially.
+ *
+ * Layout: header, user records, user index (hash and record offset, 8 bytes per user), file records.
+ */
+public class MetadataSnapshot {
+    
+    private static final int MAGIC = 0x53484D44; // "SHMD"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int INDEX_ENTRY = 8;
+    
+    private final Path file;
+    private final MappedByteBuffer users;
+    private final int userCount;
+    private final int transferCount;
+    private final long indexOffset;
+    private final long transferOffset;
+    
+    private MetadataSnapshot(Path file, MappedByteBuffer users, int userCount, int transferCount,
+                             long indexOffset, long transferOffset) {
+        this.file = file;
+        this.users = users;
+        this.userCount = userCount;
+        this.transferCount = transferCount;
+        this.indexOffset = indexOffset;
+        this.transferOffset = transferOffset;
+    }
+    
+    public static MetadataSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) != -1) {
+                // Fill the header
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a metadata snapshot: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported metadata snapshot version " + version + ": " + file);
+            }
+            int userCount = header.getInt();
+            int transferCount = header.getInt();
+            long indexOffset = header.getLong();
+            long transferOffset = header.getLong();
+            
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer users = channel.map(FileChannel.MapMode.READ_ONLY, 0, transferOffset);
+            return new MetadataSnapshot(file, users, userCount, transferCount, indexOffset, transferOffset);
+        }
+    }
+    
+    public int getUserCount() { return userCount; }
+    public int getTransferCount() { return transferCount; }
+    
+    // Binary search of the index, then a look at each record with the same hash
+    public User findUser(String username) {
+        int hash = username.hashCode();
+        int low = 0, high = userCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midHash = indexHash(mid);
+            if (midHash < hash) {
+                low = mid + 1;
+            } else if (midHash > hash) {
+                high = mid - 1;
+            } else {
+                int first = mid;
+                while (first > 0 && indexHash(first - 1) == hash) {
+                    first--;
+                }
+                for (int i = first; i < userCount && indexHash(i) == hash; i++) {
+                    ByteBuffer record = users.duplicate();
+                    record.position(indexRecord(i));
+                    if (readString(record).equals(username)) {
+                        record.position(indexRecord(i));
+                        return readUser(record);
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    public void forEachUser(Consumer<User> action) {
+        ByteBuffer record = users.duplicate();
+        record.position(HEADER_SIZE);
+        for (int i = 0; i < userCount; i++) {
+            action.accept(readUser(record));
+        }
+    }
+    
+    public void forEachTransfer(Consumer<FileTransfer> action) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.position(transferOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            for (int i = 0; i < transferCount; i++) {
+                FileTransfer transfer = new FileTransfer(in.readUTF(), in.readUTF(), in.readLong(), in.readUTF(), in.readUTF(),
+                        LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC));
+                String hash = in.readUTF();
+                transfer.setContentHash(hash.isEmpty() ? null : hash);
+                transfer.setStatus("COMPLETED");
+                action.accept(transfer);
+            }
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the given users and finished transfers. The user part must stay below 2 GB
+     * so it can be mapped in one piece.
+     */
+    public static void write(Path file, Collection<User> users, Collection<FileTransfer> transfers) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(file.toFile())) {
+            FileChannel channel = stream.getChannel();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.write(new byte[HEADER_SIZE]);
+            
+            long[] index = new long[users.size()];
+            int userCount = 0;
+            long position = HEADER_SIZE;
+            for (User user : users) {
+                if (userCount == index.length) {
+                    index = Arrays.copyOf(index, userCount * 2 + 1);
+                }
+                // Hash in the high half so sorting orders by hash; the offset fits in the low half
+                index[userCount++] = ((long) user.getUsername().hashCode() << 32) | position;
+                position += writeUser(out, user);
+                if (position > Integer.MAX_VALUE) {
+                    throw new IOException("Too many users for one snapshot");
+                }
+            }
+            Arrays.sort(index, 0, userCount);
+            
+            long indexOffset = position;
+            for (int i = 0; i < userCount; i++) {
+                out.writeLong(index[i]);
+            }
+            long transferOffset = indexOffset + (long) userCount * INDEX_ENTRY;
+            
+            int transferCount = 0;
+            for (FileTransfer transfer : transfers) {
+                if ("COMPLETED".equals(transfer.getStatus())) {
+                    writeTransfer(out, transfer);
+                    transferCount++;
+                }
+            }
+            out.flush();
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(userCount).putInt(transferCount)
+                  .putLong(indexOffset).putLong(transferOffset).flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+    }
+    
+    private int indexHash(int i) {
+        return users.getInt((int) (indexOffset + (long) i * INDEX_ENTRY));
+    }
+    
+    private int indexRecord(int i) {
+        return users.getInt((int) (indexOffset + (long) i * INDEX_ENTRY) + 4);
+    }
+    
+    // Username, password hash, email, registration time, storage used and limit; returns the length
+    private static int writeUser(DataOutputStream out, User user) throws IOException {
+        int length = writeString(out, user.getUsername());
+        length += writeString(out, user.getPasswordHash());
+        length += writeString(out, user.getEmail());
+        LocalDateTime registered = user.getRegistrationDate();
+        out.writeLong(registered.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(registered.getNano());
+        out.writeLong(user.getStorageUsed());
+        out.writeLong(user.getStorageLimit());
+        return length + 28;
+    }
+    
+    private static User readUser(ByteBuffer in) {
+        String username = readString(in);
+        String passwordHash = readString(in);
+        String email = readString(in);
+        LocalDateTime registered = LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC);
+        long storageUsed = in.getLong();
+        User user = new User(username, passwordHash, email, registered, in.getLong());
+        user.setStorageUsed(storageUsed);
+        return user;
+    }
+    
+    private static void writeTransfer(DataOutputStream out, FileTransfer transfer) throws IOException {
+        out.writeUTF(transfer.getFileId());
+        out.writeUTF(transfer.getFileName());
+        out.writeLong(transfer.getFileSize());
+        out.writeUTF(transfer.getSender());
+        out.writeUTF(transfer.getReceiver());
+        out.writeLong(transfer.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(transfer.getTimestamp().getNano());
+        out.writeUTF(transfer.getContentHash() != null ? transfer.getContentHash() : "");
+    }
+    
+    // Unsigned short length and UTF-8 bytes
+    private static int writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("String too long for snapshot");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        return 2 + bytes.length;
+    }
+    
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,166 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Server counters and latency histograms, served in the Prometheus text format. Recording only adds
+ * to striped {@link LongAdder}s, so hot paths never take a lock or allocate; all the formatting
+ * happens when the endpoint is scraped.
+ */
+public class Metrics {
+    
+    /**
+     * Latency histogram with one bucket per power of two nanoseconds, from about 1 us to about 34 s.
+     * The bucket is found from the leading zero count, so recording is a couple of instructions and an add.
+     */
+    public static class Histogram {
+        private static final int MIN_SHIFT = 10;
+        private static final int BUCKETS = 26;
+        
+        private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+        private final LongAdder sumNanos = new LongAdder();
+        
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+        
+        public void record(long nanos) {
+            // Bucket i holds values up to 2^(MIN_SHIFT + i); the last one is +Inf
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(nanos, 1) - 1) - MIN_SHIFT;
+            buckets[Math.min(Math.max(bucket, 0), BUCKETS)].increment();
+            sumNanos.add(nanos);
+        }
+        
+        // Records the time since start, as taken from System.nanoTime()
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+        
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+        
+        void write(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket").append(prefix).append("le=\"")
+                   .append((1L << (MIN_SHIFT + i)) / 1e9).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[BUCKETS].sum();
+            out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_sum").append(suffix).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+        }
+    }
+    
+    private static final String UNKNOWN_COMMAND = "UNKNOWN";
+    
+    // Fixed when constructed, so lookups from request threads never modify the map
+    private final Map<String, Histogram> commands = new LinkedHashMap<>();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private final Map<String, String> gaugeHelp = new HashMap<>();
+    
+    public final LongAdder bytesReceived = new LongAdder();
+    public final LongAdder bytesSent = new LongAdder();
+    public final LongAdder compressionSaved = new LongAdder();
+    public final LongAdder connections = new LongAdder();
+    public final LongAdder transfersInFlight = new LongAdder();
+    public final Histogram journalWrites = new Histogram();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    
+    public Metrics(Collection<String> commandNames) {
+        for (String command : commandNames) {
+            commands.put(command, new Histogram());
+        }
+        commands.put(UNKNOWN_COMMAND, new Histogram());
+        gauge("shareit_connections", "Open client connections", connections::sum);
+        gauge("shareit_transfers_in_flight", "File transfers currently moving data", transfersInFlight::sum);
+        // What idle connections cost: a thread each with the thread engine, buffers and state with any
+        gauge("shareit_jvm_threads", "Live threads in the server JVM", () -> threads.getThreadCount());
+        gauge("shareit_jvm_heap_used_bytes", "Heap in use, garbage included", () -> memory.getHeapMemoryUsage().getUsed());
+    }
+    
+    // Registers a gauge read at scrape time; call before serving
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, value);
+        gaugeHelp.put(name, help);
+    }
+    
+    // Histogram for a command name as read from the wire; unknown names share one histogram
+    public Histogram command(String command) {
+        Histogram histogram = commands.get(command);
+        return histogram != null ? histogram : commands.get(UNKNOWN_COMMAND);
+    }
+    
+    public String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        header(out, "shareit_command_duration_seconds", "histogram", "Time to read, handle and answer a command");
+        for (Map.Entry<String, Histogram> command : commands.entrySet()) {
+            if (command.getValue().count() > 0) {
+                command.getValue().write(out, "shareit_command_duration_seconds", "command=\"" + command.getKey() + "\"");
+            }
+        }
+        
+        header(out, "shareit_journal_write_seconds", "histogram", "Time to write and fsync one metadata journal batch");
+        journalWrites.write(out, "shareit_journal_write_seconds", "");
+        
+        header(out, "shareit_received_bytes_total", "counter", "File data received from clients");
+        out.append("shareit_received_bytes_total ").append(bytesReceived.sum()).append('\n');
+        header(out, "shareit_sent_bytes_total", "counter", "File data sent to clients");
+        out.append("shareit_sent_bytes_total ").append(bytesSent.sum()).append('\n');
+        header(out, "shareit_compression_saved_bytes_total", "counter", "File data that compression kept off the wire");
+        out.append("shareit_compression_saved_bytes_total ").append(compressionSaved.sum()).append('\n');
+        
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            header(out, gauge.getKey(), "gauge", gaugeHelp.get(gauge.getKey()));
+            out.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+    
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    /**
+     * Serves GET /metrics on the given address from a single background thread.
+     */
+    public HttpServer serve(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import security.PasswordHasher;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs password hashing on a small fixed pool, so a login storm keeps at most that many cores busy
+ * and transfers keep the rest; logins beyond the pool wait in a bounded queue or are turned away.
+ *
+ * A successful check is remembered as an HMAC of the password under a random key that only lives in
+ * this process. The client's ATTACH, SUBSCRIBE and reconnects repeat the same credentials, and they
+ * skip the KDF as long as the user's stored hash hasn't changed since.
+ */
+public class PasswordVerifier {
+    
+    private final PasswordHasher hasher;
+    private final ThreadPoolExecutor pool;
+    private final SecretKey cacheKey;
+    // Guarded by itself; least recently used entries go first
+    private final Map<String, Cached> cache;
+    private volatile String dummyHash;
+    
+    public PasswordVerifier(PasswordHasher hasher, int threads, int queueCapacity, int cacheSize) {
+        this.hasher = hasher;
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                task -> {
+                    Thread thread = new Thread(task, "password-hasher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        cacheKey = new SecretKeySpec(key, "HmacSHA256");
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+    
+    // Hash for a new account
+    public String hash(String password) throws IOException {
+        return run(() -> hasher.hash(password));
+    }
+    
+    /**
+     * Checks the password against the stored hash, or burns the same time when there is no such user
+     * (storedHash null) so unknown names can't be told apart by timing. If the stored hash is in an
+     * outdated format, a fresh hash is passed to rehashed after a successful check.
+     */
+    public boolean verify(String username, String storedHash, String password, Consumer<String> rehashed) throws IOException {
+        if (storedHash == null) {
+            String dummy = dummyHash;
+            if (dummy == null) {
+                dummy = dummyHash = hash("not a password");
+            }
+            String hash = dummy;
+            run(() -> hasher.verify(password, hash));
+            return false;
+        }
+        
+        byte[] mac = mac(password);
+        Cached cached;
+        synchronized (cache) {
+            cached = cache.get(username);
+        }
+        if (cached != null && cached.storedHash.equals(storedHash) && MessageDigest.isEqual(cached.mac, mac)) {
+            return true;
+        }
+        
+        String upgraded = run(() -> {
+            if (!hasher.verify(password, storedHash)) {
+                return null;
+            }
+            return hasher.needsRehash(storedHash) ? hasher.hash(password) : storedHash;
+        });
+        if (upgraded == null) {
+            return false;
+        }
+        if (!upgraded.equals(storedHash)) {
+            rehashed.accept(upgraded);
+        }
+        synchronized (cache) {
+            cache.put(username, new Cached(upgraded, mac));
+        }
+        return true;
+    }
+    
+    private <T> T run(Callable<T> task) throws IOException {
+        try {
+            return pool.submit(task).get();
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Too many logins in progress");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while checking a password");
+        } catch (ExecutionException e) {
+            throw new IOException("Password check failed", e.getCause());
+        }
+    }
+    
+    private byte[] mac(String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(cacheKey);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+    
+    private static class Cached {
+        final String storedHash;
+        final byte[] mac;
+        
+        Cached(String storedHash, byte[] mac) {
+            this.storedHash = storedHash;
+            this.mac = mac;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package server;
+
+import common.User;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Per-user storage accounting. An upload reserves its size before any bytes arrive; the reservation
+ * is committed once the file is stored, or released if the upload fails, so parallel uploads of one
+ * user can never go over the limit together.
+ *
+ * Every user has one counter holding the space stored plus the space reserved. Reserving is a
+ * compare-and-set on that counter, so transfers of different users never touch the same memory and
+ * transfers of one user never wait on a lock.
+ */
+public class QuotaLedger {
+    
+    private final Map<String, AtomicLong> charged = new ConcurrentHashMap<>();
+    // Records a change of the user's stored bytes (the storage used field and the journal)
+    private final ObjLongConsumer<User> storageChange;
+    
+    public QuotaLedger(ObjLongConsumer<User> storageChange) {
+        this.storageChange = storageChange;
+    }
+    
+    /**
+     * Reserves bytes for the user, or returns null if that would go over the user's limit.
+     */
+    public Reservation reserve(User user, long bytes) {
+        AtomicLong counter = counter(user);
+        long current;
+        do {
+            current = counter.get();
+            if (bytes < 0 || bytes > user.getStorageLimit() - current) {
+                return null;
+            }
+        } while (!counter.compareAndSet(current, current + bytes));
+        return new Reservation(user, bytes);
+    }
+    
+    // Gives back the space of a deleted file
+    public void free(User user, long bytes) {
+        counter(user).addAndGet(-bytes);
+        storageChange.accept(user, -bytes);
+    }
+    
+    private AtomicLong counter(User user) {
+        // Starts from the stored total; from then on every change goes through the ledger
+        return charged.computeIfAbsent(user.getUsername(), name -> new AtomicLong(user.getStorageUsed()));
+    }
+    
+    /**
+     * Space held for one upload. Closing it gives the space back unless it was committed first.
+     */
+    public class Reservation implements AutoCloseable {
+        private final User user;
+        private final long bytes;
+        private final AtomicBoolean settled = new AtomicBoolean();
+        
+        Reservation(User user, long bytes) {
+            this.user = user;
+            this.bytes = bytes;
+        }
+        
+        // The upload is stored: the reserved space now counts as used
+        public void commit() {
+            if (settled.compareAndSet(false, true)) {
+                storageChange.accept(user, bytes);
+            }
+        }
+        
+        @Override
+        public void close() {
+            if (settled.compareAndSet(false, true)) {
+                counter(user).addAndGet(-bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Selector based connection engine. Idle connections sit in a single Selector and hold no thread;
+ * when a command arrives the channel is handed to a worker, switched to blocking mode and the
+ * regular command dispatch runs as usual. Afterwards the channel goes back to the selector.
+ */
+public class SelectorEngine implements Runnable {
+    
+    public interface ConnectionHandler {
+        // Reads and handles one command, returns false when the connection should be closed
+        boolean handleNext() throws IOException;
+        boolean hasBufferedInput() throws IOException;
+        void close();
+    }
+    
+    public interface HandlerFactory {
+        ConnectionHandler create(SocketChannel channel) throws IOException;
+    }
+    
+    private final ServerSocketChannel serverChannel;
+    private final HandlerFactory factory;
+    private final ExecutorService workers;
+    private final Queue<Registration> pending = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    
+    public SelectorEngine(ServerSocketChannel serverChannel, HandlerFactory factory, ExecutorService workers) {
+        this.serverChannel = serverChannel;
+        this.factory = factory;
+        this.workers = workers;
+    }
+    
+    @Override
+    public void run() {
+        try (Selector sel = Selector.open()) {
+            selector = sel;
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            
+            List<SelectionKey> ready = new ArrayList<>();
+            while (serverChannel.isOpen()) {
+                selector.select();
+                registerPending();
+                
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add(key);
+                    }
+                }
+                
+                if (!ready.isEmpty()) {
+                    // Flush the cancelled keys so the channels can be switched to blocking mode
+                    selector.selectNow();
+                    for (SelectionKey key : ready) {
+                        dispatch((SocketChannel) key.channel(), (ConnectionHandler) key.attachment());
+                    }
+                    ready.clear();
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // Server stopped
+        } catch (IOException e) {
+            System.err.println("Selector engine failed: " + e.getMessage());
+        }
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        try {
+            channel.register(selector, SelectionKey.OP_READ, factory.create(channel));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+        }
+    }
+    
+    private void dispatch(SocketChannel channel, ConnectionHandler handler) {
+        try {
+            workers.execute(() -> serve(channel, handler));
+        } catch (RejectedExecutionException e) {
+            handler.close();
+        }
+    }
+    
+    private void serve(SocketChannel channel, ConnectionHandler handler) {
+        try {
+            channel.configureBlocking(true);
+            boolean open;
+            do {
+                open = handler.handleNext();
+            } while (open && handler.hasBufferedInput());
+            
+            if (!open) {
+                handler.close();
+                return;
+            }
+            channel.configureBlocking(false);
+            pending.add(new Registration(channel, handler));
+            selector.wakeup();
+        } catch (IOException | IllegalBlockingModeException e) {
+            handler.close();
+        } catch (RuntimeException e) {
+            // Otherwise the connection would be neither closed nor back in the selector, and still counted
+            System.err.println("Connection handler failed: " + e);
+            handler.close();
+        }
+    }
+    
+    private void registerPending() {
+        Registration registration;
+        while ((registration = pending.poll()) != null) {
+            try {
+                registration.channel.register(selector, SelectionKey.OP_READ, registration.handler);
+            } catch (IOException | RuntimeException e) {
+                registration.handler.close();
+            }
+        }
+    }
+    
+    private static class Registration {
+        final SocketChannel channel;
+        final ConnectionHandler handler;
+        
+        Registration(SocketChannel channel, ConnectionHandler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+    }
+}
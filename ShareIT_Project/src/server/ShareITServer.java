@@ -1,33 +1,165 @@
 package server;
 
+import com.sun.net.httpserver.HttpServer;
 import common.*;
-import security.EncryptionUtil;
+import security.ChunkedEncryption;
+import security.PasswordHasher;
+import security.TlsContexts;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.io.*;
 import java.net.*;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 public class ShareITServer {
-    private static final int PORT = 8080;
+    private static final int PORT = Integer.getInteger("shareit.port", 8080);
+    private static final int BACKLOG = Integer.getInteger("shareit.backlog", 1024);
+    // Connection engine: "thread" (platform thread per connection), "virtual" or "nio"
+    private static final String ENGINE = System.getProperty("shareit.engine", "thread");
+    private static final int NIO_WORKERS = Integer.getInteger("shareit.nio.workers",
+            Runtime.getRuntime().availableProcessors() * 4);
     private static final String UPLOAD_DIR = "shared_files/";
     private static final String USER_DIR = "users/";
     private static final String LOG_DIR = "logs/";
+    private static final String JOURNAL_DIR = "journal/";
+    // Journal segment size that triggers a new snapshot
+    private static final long JOURNAL_SEGMENT_BYTES = Long.getLong("shareit.journal.segment.bytes", 64L * 1024 * 1024);
+    // Where finished transfers live: "heap" (plain objects, default) or "mapped" (off-heap records)
+    private static final String STORE = System.getProperty("shareit.store", "heap");
+    // Key file for encrypting stored files (created on first start); unset stores plaintext
+    private static final String ENCRYPTION_KEY_FILE = System.getProperty("shareit.encryption.keyfile");
+    // PKCS12 or JKS key store with the server certificate; when set, clients have to connect with TLS
+    private static final String TLS_KEY_STORE = System.getProperty("shareit.tls.keystore");
+    private static final String TLS_KEY_STORE_PASSWORD = System.getProperty("shareit.tls.keystore.password", "");
+    private static final int TLS_SESSION_CACHE = Integer.getInteger("shareit.tls.session.cache", 10000);
+    private static final int TLS_SESSION_TIMEOUT = Integer.getInteger("shareit.tls.session.timeout", 24 * 60 * 60);
+    // PBKDF2 cost for new and upgraded password hashes, and the threads that may compute them at once
+    private static final int PASSWORD_ITERATIONS = Integer.getInteger("shareit.password.iterations",
+            PasswordHasher.DEFAULT_ITERATIONS);
+    private static final int PASSWORD_THREADS = Integer.getInteger("shareit.password.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int PASSWORD_QUEUE = Integer.getInteger("shareit.password.queue", 256);
+    private static final int PASSWORD_CACHE = Integer.getInteger("shareit.password.cache", 10000);
+    // Bandwidth limits in bytes per second, 0 for none; transfers of files up to the small size jump the global queue
+    private static final long RATE_GLOBAL = Long.getLong("shareit.rate.global", 0);
+    private static final long RATE_USER = Long.getLong("shareit.rate.user", 0);
+    private static final long RATE_BURST = Long.getLong("shareit.rate.burst", 1024 * 1024);
+    private static final long RATE_SMALL_BYTES = Long.getLong("shareit.rate.small.bytes", 4 * 1024 * 1024);
+    private static final int RATE_WEIGHT_UPLOAD = Integer.getInteger("shareit.rate.weight.upload", 1);
+    private static final int RATE_WEIGHT_DOWNLOAD = Integer.getInteger("shareit.rate.weight.download", 1);
+    // Upload admission: streams writing at once, how many may wait for one and for how long, disk space
+    // always kept free, and the seconds a refused client is told to wait before trying again
+    private static final int UPLOAD_STREAMS = Integer.getInteger("shareit.upload.streams", 32);
+    private static final int UPLOAD_STREAMS_PER_USER = Integer.getInteger("shareit.upload.streams.per.user", 4);
+    private static final int UPLOAD_QUEUE = Integer.getInteger("shareit.upload.queue", 256);
+    private static final long UPLOAD_WAIT_MS = Long.getLong("shareit.upload.wait.ms", 10_000);
+    private static final long UPLOAD_MIN_FREE_BYTES = Long.getLong("shareit.upload.min.free.bytes", 256L * 1024 * 1024);
+    private static final int UPLOAD_RETRY_AFTER = Integer.getInteger("shareit.upload.retry.after", 5);
+    // Compression of file data on the wire for clients that ask for it: Deflater level and worker threads
+    private static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("shareit.compression", "true"));
+    private static final int COMPRESSION_LEVEL = Integer.getInteger("shareit.compression.level", Deflater.BEST_SPEED);
+    private static final int COMPRESSION_THREADS = Integer.getInteger("shareit.compression.threads",
+            Runtime.getRuntime().availableProcessors());
+    // Compression at rest, off by default: every interval, finished files of compressible types older
+    // than the age are compacted with the given Deflater level
+    private static final boolean COMPACT = Boolean.getBoolean("shareit.compact");
+    private static final long COMPACT_AGE_SECONDS = Long.getLong("shareit.compact.age.seconds", 24 * 60 * 60);
+    private static final long COMPACT_INTERVAL_SECONDS = Long.getLong("shareit.compact.interval.seconds", 60 * 60);
+    private static final int COMPACT_LEVEL = Integer.getInteger("shareit.compact.level", 6);
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int PUSH_THREADS = Integer.getInteger("shareit.push.threads", 2);
+    private static final int PUSH_QUEUE = Integer.getInteger("shareit.push.queue", 1024);
+    private static final long PUSH_WRITE_TIMEOUT_MS = Long.getLong("shareit.push.write.timeout.ms", 10_000);
+    // Prometheus endpoint at http://METRICS_HOST:METRICS_PORT/metrics; off unless a port is given
+    private static final int METRICS_PORT = Integer.getInteger("shareit.metrics.port", -1);
+    private static final String METRICS_HOST = System.getProperty("shareit.metrics.host", "127.0.0.1");
+    // Log lines are buffered and written by a background thread; "block" or "drop" when the buffer is full
+    private static final AsyncLog logger = new AsyncLog(Paths.get(LOG_DIR, "server.log"),
+            Integer.getInteger("shareit.log.buffer", 8192),
+            AsyncLog.Overflow.valueOf(System.getProperty("shareit.log.overflow", "block").toUpperCase(Locale.ROOT)),
+            Long.getLong("shareit.log.max.bytes", 10L * 1024 * 1024), Integer.getInteger("shareit.log.keep", 5),
+            Boolean.parseBoolean(System.getProperty("shareit.log.console", "true")) ? System.out : null);
     
-    private ServerSocket serverSocket;
-    private boolean running;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    private HttpServer metricsServer;
     
     // Thread-safe collections
-    private static Map<String, User> users = new ConcurrentHashMap<>();
+    private static final UserStore users = new UserStore();
     private static Map<String, FileTransfer> fileTransfers = new ConcurrentHashMap<>();
-    private static Map<String, Set<FileTransfer>> userFiles = new ConcurrentHashMap<>();
+    private static final FileIndex fileIndex = new FileIndex();
+    private static final MappedTransferStore transferStore = "mapped".equals(STORE)
+            ? new MappedTransferStore(Paths.get(JOURNAL_DIR, "transfers.map")) : null;
     private static Map<String, Socket> onlineUsers = new ConcurrentHashMap<>();
+    private static final BlobStore blobStore = new BlobStore(Paths.get(UPLOAD_DIR), loadEncryption());
+    private static final SSLContext tls = loadTls();
+    private static final QuotaLedger quotas = new QuotaLedger(ShareITServer::addStorageUsed);
+    // Space held by chunked uploads between UPLOAD_INIT and UPLOAD_COMPLETE, by file id
+    private static final Map<String, QuotaLedger.Reservation> uploadReservations = new ConcurrentHashMap<>();
+    private static final TransferScheduler shaper = new TransferScheduler(RATE_GLOBAL, RATE_USER, RATE_BURST,
+            RATE_SMALL_BYTES, RATE_WEIGHT_UPLOAD, RATE_WEIGHT_DOWNLOAD);
+    private static final UploadAdmission admission = loadAdmission();
+    private static final TransferCompression compression = new TransferCompression(
+            Executors.newFixedThreadPool(COMPRESSION_THREADS, task -> {
+                Thread thread = new Thread(task, "compressor");
+                thread.setDaemon(true);
+                return thread;
+            }), COMPRESSION_LEVEL, 4);
+    private static final PasswordVerifier passwords = new PasswordVerifier(new PasswordHasher(PASSWORD_ITERATIONS),
+            PASSWORD_THREADS, PASSWORD_QUEUE, PASSWORD_CACHE);
+    private static final ChangeLog changeLog = new ChangeLog(Integer.getInteger("shareit.changelog.size", 65536));
+    private static final Metrics metrics = new Metrics(Arrays.asList(
+            "REGISTER", "LOGIN", "UPLOAD", "DOWNLOAD", "LIST_FILES", "LIST_FILES_PAGE", "CHANGES_SINCE", "LIST_USERS",
+            "SEND_FILE", "GET_STATS", "LOGOUT", "DELETE_FILE", "UPLOAD_INIT", "UPLOAD_CHUNK", "UPLOAD_RESUME",
+            "UPLOAD_STATUS", "UPLOAD_BY_HASH", "UPLOAD_OFFER_CHUNKS", "ATTACH", "SUBSCRIBE", "UPLOAD_COMPLETE",
+            "DOWNLOAD_RANGE", "CODECS", "UPLOAD_CHUNK_CODEC", "DOWNLOAD_RANGE_CODEC"));
+    private static final MetadataJournal journal = new MetadataJournal(Paths.get(JOURNAL_DIR), JOURNAL_SEGMENT_BYTES,
+            users::values, ShareITServer::loadedFiles, metrics.journalWrites);
+    // File metadata is loaded in the background at startup; file commands wait for it
+    private static final CountDownLatch filesLoaded = new CountDownLatch(1);
+    private static volatile boolean filesLoadFailed;
+    // What storagePath names the file of an upload in progress: its random UUID, then the file name
+    private static final Pattern UNFINISHED_UPLOAD = Pattern.compile("\\p{XDigit}{8}(-\\p{XDigit}{4}){3}-\\p{XDigit}{12}_.*", Pattern.DOTALL);
+    private static final Set<String> ACCOUNT_COMMANDS = new HashSet<>(Arrays.asList(
+            "REGISTER", "LOGIN", "ATTACH", "SUBSCRIBE", "LIST_USERS", "LOGOUT", "CODECS"));
+    private static final EventHub eventHub = new EventHub(Executors.newFixedThreadPool(PUSH_THREADS),
+            ShareITServer::writeChange, PUSH_QUEUE, PUSH_WRITE_TIMEOUT_MS);
     
     public ShareITServer() {
         initializeDirectories();
+        recoverMetadata();
+        discardUnfinishedUploads();
         loadUsers();
+        changeLog.setListener(eventHub::publish);
+        metrics.gauge("shareit_online_users", "Users logged in", onlineUsers::size);
+        metrics.gauge("shareit_files", "Files shared or being uploaded", fileTransfers::size);
+        metrics.gauge("shareit_upload_streams", "Uploads writing to disk", admission::activeStreams);
+        metrics.gauge("shareit_upload_streams_waiting", "Uploads waiting for a stream", admission::waitingStreams);
+        metrics.gauge("shareit_upload_promised_bytes", "Disk space held for data of admitted uploads",
+                admission::promisedBytes);
     }
     
     private void initializeDirectories() {
@@ -36,118 +168,671 @@ public class ShareITServer {
         new File(LOG_DIR).mkdirs();
     }
     
-    private void loadUsers() {
-        // Load users from file (in real app, use database)
+    // Opens the snapshot and replays the newer journal records; users are decoded from the snapshot
+    // on first use and files load in the background, so connections are accepted right away
+    private void recoverMetadata() {
+        MetadataSnapshot[] snapshot = {null};
+        // Newer file records win over the snapshot; null marks a deleted file
+        Map<String, FileTransfer> recentFiles = new LinkedHashMap<>();
         try {
-            File userFile = new File(USER_DIR + "users.dat");
-            if (userFile.exists()) {
-                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(userFile))) {
-                    users.putAll((Map<String, User>) ois.readObject());
+            journal.recover(new MetadataJournal.Replay() {
+                @Override
+                public void snapshot(MetadataSnapshot recovered) {
+                    snapshot[0] = recovered;
+                    users.setSnapshot(recovered);
+                }
+                
+                @Override
+                public void user(User user, boolean withStorage) {
+                    User known = withStorage ? null : users.get(user.getUsername());
+                    if (known != null) {
+                        user.setStorageUsed(known.getStorageUsed());
+                    }
+                    users.put(user);
+                }
+                
+                @Override
+                public void storage(String username, long storageUsed) {
+                    User user = users.get(username);
+                    if (user != null) {
+                        user.setStorageUsed(storageUsed);
+                    }
+                }
+                
+                @Override
+                public void transfer(FileTransfer transfer) {
+                    recentFiles.put(transfer.getFileId(), transfer);
+                }
+                
+                @Override
+                public void delete(String fileId) {
+                    recentFiles.put(fileId, null);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot recover metadata journal", e);
+        }
+        
+        Thread loader = new Thread(() -> loadFiles(snapshot[0], recentFiles), "file-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+    
+    // Uploads aren't journaled until they complete, so the presized files of uploads cut off by a
+    // restart belong to nobody; their disk space and quota holds were only ever in memory
+    private void discardUnfinishedUploads() {
+        int discarded = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(UPLOAD_DIR))) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && UNFINISHED_UPLOAD.matcher(file.getFileName().toString()).matches()) {
+                    Files.delete(file);
+                    discarded++;
                 }
             }
-        } catch (Exception e) {
-            log("Error loading users: " + e.getMessage());
+            discarded += blobStore.clearIncoming();
+        } catch (IOException e) {
+            log("Error discarding unfinished uploads: " + e.getMessage());
+        }
+        if (discarded > 0) {
+            log("Discarded " + discarded + " files of unfinished uploads");
         }
     }
     
-    private void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USER_DIR + "users.dat"))) {
-            oos.writeObject(users);
+    // Reference counts and indexes are rebuilt from the recovered files
+    private static void loadFiles(MetadataSnapshot snapshot, Map<String, FileTransfer> recentFiles) {
+        try {
+            if (snapshot != null) {
+                snapshot.forEachTransfer(transfer -> {
+                    if (!recentFiles.containsKey(transfer.getFileId())) {
+                        restoreFile(transfer);
+                    }
+                });
+            }
+            for (FileTransfer transfer : recentFiles.values()) {
+                if (transfer != null) {
+                    restoreFile(transfer);
+                }
+            }
+            log("Loaded " + fileTransfers.size() + " files");
+        } catch (IOException e) {
+            // Don't let a snapshot of the partial state replace the journal
+            filesLoadFailed = true;
+            log("Error loading files: " + e.getMessage());
+        } finally {
+            filesLoaded.countDown();
+        }
+    }
+    
+    private static void restoreFile(FileTransfer transfer) {
+        if (transfer.getContentHash() == null || !blobStore.restore(transfer.getContentHash(), transfer.getFileSize())) {
+            log("Dropping file with missing content: " + transfer.getFileName() + " (" + transfer.getFileId() + ")");
+            return;
+        }
+        transfer = compact(transfer);
+        fileTransfers.put(transfer.getFileId(), transfer);
+        fileIndex.add(transfer);
+    }
+    
+    private static void awaitFiles() throws IOException {
+        try {
+            filesLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while files were loading");
+        }
+        if (filesLoadFailed) {
+            throw new IOException("File metadata failed to load");
+        }
+    }
+    
+    private static Collection<FileTransfer> loadedFiles() {
+        try {
+            awaitFiles();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return fileTransfers.values();
+    }
+    
+    // Moves users saved by older versions into the journal
+    private void loadUsers() {
+        File userFile = new File(USER_DIR + "users.dat");
+        if (!userFile.exists() || !users.isEmpty()) {
+            return;
+        }
+        try {
+            Map<String, User> saved;
+            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(userFile))) {
+                saved = (Map<String, User>) ois.readObject();
+            }
+            for (User user : saved.values()) {
+                user.setOnline(false);
+                users.put(user);
+                journal.logUser(user);
+            }
+            journal.sync();
+            Files.move(userFile.toPath(), Paths.get(USER_DIR + "users.dat.migrated"));
+            log("Migrated " + saved.size() + " users to the metadata journal");
         } catch (Exception e) {
-            log("Error saving users: " + e.getMessage());
+            log("Error loading users: " + e.getMessage());
         }
     }
     
     public void start() {
         try {
-            serverSocket = new ServerSocket(PORT);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(PORT), BACKLOG);
             running = true;
-            log("🚀 ShareIT Premium Server started on port " + PORT);
+            log("🚀 ShareIT Premium Server started on port " + PORT + " (" + ENGINE + " engine"
+                    + (tls != null ? ", TLS" : "") + (shaper.isShaping() ? ", bandwidth limited" : "") + ")");
             log("📁 Upload directory: " + new File(UPLOAD_DIR).getAbsolutePath());
+            startMetrics();
+            startCompactor();
+            startPushWatchdog();
             
-            while (running) {
-                Socket clientSocket = serverSocket.accept();
-                new ClientHandler(clientSocket).start();
+            switch (ENGINE) {
+                case "nio":
+                    ExecutorService workers = Executors.newFixedThreadPool(NIO_WORKERS);
+                    try {
+                        new SelectorEngine(serverChannel, ClientHandler::new, workers).run();
+                    } finally {
+                        workers.shutdownNow();
+                    }
+                    break;
+                case "virtual":
+                    acceptLoop(newVirtualThreadExecutor());
+                    break;
+                default:
+                    acceptLoop(task -> new Thread(task).start());
             }
         } catch (IOException e) {
-            log("Server error: " + e.getMessage());
+            if (running) {
+                log("Server error: " + e.getMessage());
+            }
         }
     }
     
-    private static void log(String message) {
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-        String logMessage = "[" + timestamp + "] " + message;
-        System.out.println(logMessage);
-        
-        // Write to log file
-        try (PrintWriter out = new PrintWriter(new FileWriter(LOG_DIR + "server.log", true))) {
-            out.println(logMessage);
+    private void startCompactor() {
+        if (!COMPACT) {
+            return;
+        }
+        if (ENCRYPTION_KEY_FILE != null) {
+            // Encrypted content doesn't compress, and it mustn't be stored decrypted
+            log("Compaction is off while stored files are encrypted");
+            return;
+        }
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(new BlobCompactor(blobStore, ShareITServer::loadedFiles,
+                        java.time.Duration.ofSeconds(COMPACT_AGE_SECONDS), COMPACT_LEVEL, ShareITServer::log),
+                COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        log("🗜 Compacting files older than " + COMPACT_AGE_SECONDS + " s every " + COMPACT_INTERVAL_SECONDS + " s");
+    }
+    
+    // Drops event subscribers whose writes have stalled, checking a few times per write timeout
+    private void startPushWatchdog() {
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "push-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, PUSH_WRITE_TIMEOUT_MS / 4);
+        watchdog.scheduleWithFixedDelay(eventHub::closeStalled, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    private void startMetrics() {
+        if (METRICS_PORT < 0) {
+            return;
+        }
+        try {
+            metricsServer = metrics.serve(METRICS_HOST, METRICS_PORT);
+            log("📊 Metrics at http://" + METRICS_HOST + ":" + metricsServer.getAddress().getPort() + "/metrics");
         } catch (IOException e) {
-            System.err.println("Failed to write log: " + e.getMessage());
+            // Serve files anyway
+            log("Metrics endpoint not started: " + e.getMessage());
+        }
+    }
+    
+    public void stop() {
+        running = false;
+        if (metricsServer != null) {
+            metricsServer.stop(0);
+        }
+        journal.close();
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            log("Error stopping server: " + e.getMessage());
+        }
+        // Last, so everything above can still log
+        logger.close();
+    }
+    
+    private void acceptLoop(Executor executor) throws IOException {
+        while (running) {
+            SocketChannel channel = serverChannel.accept();
+            channel.socket().setTcpNoDelay(true);
+            executor.execute(new ClientHandler(channel));
+        }
+    }
+    
+    private static Executor newVirtualThreadExecutor() {
+        // Virtual threads need JDK 21+; looked up reflectively so the server still builds on older JDKs
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log("Virtual threads not available on this JVM, falling back to platform threads");
+            return task -> new Thread(task).start();
+        }
+    }
+    
+    private static void addTransfer(FileTransfer transfer) {
+        fileTransfers.put(transfer.getFileId(), transfer);
+        fileIndex.add(transfer);
+        changeLog.fileAdded(transfer);
+    }
+    
+    private static boolean removeTransfer(FileTransfer transfer) {
+        if (!fileTransfers.remove(transfer.getFileId(), transfer)) {
+            return false;
+        }
+        fileIndex.remove(transfer);
+        journal.logDelete(transfer.getFileId());
+        changeLog.fileRemoved(transfer);
+        return true;
+    }
+    
+    // Marks a stored upload COMPLETED, charges its quota and journals it, unless the transfer was removed
+    // meanwhile; under the transfer's lock, which deletes take too, so a delete never sees it half
+    // finished and its DELETE record always comes after the TRANSFER record
+    private static boolean commitUpload(FileTransfer transfer, QuotaLedger.Reservation reservation) {
+        synchronized (transfer) {
+            if (fileTransfers.get(transfer.getFileId()) != transfer) {
+                blobStore.release(transfer.getContentHash());
+                return false;
+            }
+            transfer.setStatus("COMPLETED");
+            reservation.commit();
+            journal.logTransfer(transfer);
+            return true;
+        }
+    }
+    
+    // Finished transfers move off the heap when the mapped store is enabled
+    private static FileTransfer compact(FileTransfer transfer) {
+        return transferStore != null ? transferStore.store(transfer) : transfer;
+    }
+    
+    // Swaps a transfer that just finished for its compact copy; serialized with removal by the map
+    private static void finishTransfer(FileTransfer transfer) {
+        FileTransfer compacted = compact(transfer);
+        if (compacted == transfer) {
+            return;
+        }
+        fileTransfers.computeIfPresent(transfer.getFileId(), (id, current) -> {
+            if (current != transfer) {
+                return current;
+            }
+            fileIndex.remove(transfer);
+            fileIndex.add(compacted);
+            return compacted;
+        });
+    }
+    
+    // Only called through the quota ledger, which also keeps the user's reservations
+    private static void addStorageUsed(User user, long delta) {
+        // Journal records carry the new total, so they must be appended in update order
+        synchronized (user) {
+            user.setStorageUsed(user.getStorageUsed() + delta);
+            journal.logStorage(user);
+        }
+        changeLog.userUpdated(user.getUsername());
+    }
+    
+    private static void setOnline(User user, boolean online) {
+        user.setOnline(online);
+        changeLog.userUpdated(user.getUsername());
+    }
+    
+    // Finished uploads live in the blob store; chunked uploads are assembled under their fileId first
+    private static ChunkedEncryption loadEncryption() {
+        if (ENCRYPTION_KEY_FILE == null) {
+            return null;
+        }
+        try {
+            return ChunkedEncryption.fromKeyFile(Paths.get(ENCRYPTION_KEY_FILE));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot load encryption key", e);
+        }
+    }
+    
+    private static SSLContext loadTls() {
+        if (TLS_KEY_STORE == null) {
+            return null;
+        }
+        try {
+            return TlsContexts.server(Paths.get(TLS_KEY_STORE), TLS_KEY_STORE_PASSWORD.toCharArray(),
+                    TLS_SESSION_CACHE, TLS_SESSION_TIMEOUT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot set up TLS", e);
+        }
+    }
+    
+    private static UploadAdmission loadAdmission() {
+        try {
+            return new UploadAdmission(Paths.get(UPLOAD_DIR), UPLOAD_MIN_FREE_BYTES, UPLOAD_STREAMS,
+                    UPLOAD_STREAMS_PER_USER, UPLOAD_QUEUE, UPLOAD_WAIT_MS, UPLOAD_RETRY_AFTER);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open upload directory " + UPLOAD_DIR, e);
+        }
+    }
+    
+    // Replaces a hash in an outdated format after the user logged in with the right password
+    private static void upgradePassword(User user, String passwordHash) {
+        user.setPasswordHash(passwordHash);
+        journal.logUser(user);
+        log("Password hash upgraded: " + user.getUsername());
+    }
+    
+    // Stored content of a finished transfer, or null if it is gone
+    private static BlobStore.Content openContent(FileTransfer transfer) throws IOException {
+        if (transfer.getContentHash() == null) {
+            return null;
+        }
+        try {
+            return blobStore.open(transfer.getContentHash());
+        } catch (NoSuchFileException e) {
+            return null;
         }
     }
     
-    class ClientHandler extends Thread {
-        private Socket socket;
-        private DataInputStream dis;
-        private DataOutputStream dos;
+    private static Path storagePath(FileTransfer transfer) {
+        String hash = transfer.getContentHash();
+        return hash != null ? blobStore.blobPath(hash) : Paths.get(UPLOAD_DIR + transfer.getFileId() + "_" + transfer.getFileName());
+    }
+    
+    private static void writeFileRow(DataOutputStream out, FileTransfer transfer) throws IOException {
+        out.writeUTF(transfer.getFileId());
+        out.writeUTF(transfer.getFileName());
+        out.writeUTF(transfer.getSender());
+        out.writeUTF(transfer.getReceiver());
+        out.writeLong(transfer.getFileSize());
+        out.writeUTF(transfer.getFileType());
+        out.writeUTF(transfer.getTimestamp().toString());
+    }
+    
+    private static void writeUserRow(DataOutputStream out, User user) throws IOException {
+        out.writeUTF(user.getUsername());
+        out.writeUTF(user.getEmail());
+        out.writeBoolean(user.isOnline());
+        out.writeLong(user.getStorageUsed());
+        out.writeLong(user.getStorageLimit());
+    }
+    
+    // Same encoding for CHANGES_SINCE replies and pushed events
+    private static void writeChange(DataOutputStream out, ChangeLog.Change change) throws IOException {
+        out.writeUTF(change.type.name());
+        switch (change.type) {
+            case FILE_ADDED:
+                writeFileRow(out, change.transfer);
+                break;
+            case FILE_REMOVED:
+                out.writeUTF(change.transfer.getFileId());
+                break;
+            default:
+                writeUserRow(out, users.get(change.username));
+        }
+    }
+    
+    private static void log(String message) {
+        logger.log(message);
+    }
+    
+    class ClientHandler implements Runnable, SelectorEngine.ConnectionHandler {
+        private final Socket socket;
+        // Null unless TLS is on; then all traffic goes through it
+        private final TlsChannel tlsChannel;
+        // Input stays unbuffered so no command bytes are ever held back from the selector
+        private final DataInputStream dis;
+        private final DataOutputStream dos;
         private User currentUser;
+        // Extra transfer connections of a logged in client don't count towards presence
+        private boolean attachedStream;
+        // Set once the connection has been handed to the event hub
+        private boolean subscribed;
         
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+        public ClientHandler(SocketChannel channel) throws IOException {
+            this.socket = channel.socket();
+            if (tls != null) {
+                SSLEngine engine = tls.createSSLEngine();
+                engine.setUseClientMode(false);
+                tlsChannel = new TlsChannel(channel, engine);
+                dis = new DataInputStream(Channels.newInputStream(tlsChannel));
+                dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(tlsChannel)));
+            } else {
+                tlsChannel = null;
+                dis = new DataInputStream(socket.getInputStream());
+                dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+            metrics.connections.increment();
         }
         
         @Override
         public void run() {
             try {
-                dis = new DataInputStream(socket.getInputStream());
-                dos = new DataOutputStream(socket.getOutputStream());
-                
-                while (true) {
-                    String command = dis.readUTF();
-                    
-                    switch (command) {
-                        case "REGISTER":
-                            handleRegister();
-                            break;
-                        case "LOGIN":
-                            handleLogin();
-                            break;
-                        case "UPLOAD":
-                            handleUpload();
-                            break;
-                        case "DOWNLOAD":
-                            handleDownload();
-                            break;
-                        case "LIST_FILES":
-                            handleListFiles();
-                            break;
-                        case "LIST_USERS":
-                            handleListUsers();
-                            break;
-                        case "SEND_FILE":
-                            handleSendFile();
-                            break;
-                        case "GET_STATS":
-                            handleGetStats();
-                            break;
-                        case "LOGOUT":
-                            handleLogout();
-                            return;
-                        case "DELETE_FILE":
-                            handleDeleteFile();
-                            break;
-                        default:
-                            dos.writeUTF("ERROR: Unknown command");
-                    }
+                while (handleNext()) {
+                    // Keep serving commands on this thread until logout
                 }
             } catch (IOException e) {
-                log("Client disconnected: " + (currentUser != null ? currentUser.getUsername() : "Unknown"));
+                // Connection dropped, cleaned up below
             } finally {
-                if (currentUser != null) {
-                    currentUser.setOnline(false);
-                    onlineUsers.remove(currentUser.getUsername());
+                close();
+            }
+        }
+        
+        @Override
+        public boolean handleNext() throws IOException {
+            String command = dis.readUTF();
+            long start = System.nanoTime();
+            if (!ACCOUNT_COMMANDS.contains(command)) {
+                awaitFiles();
+            }
+            
+            try {
+                switch (command) {
+                    case "REGISTER":
+                        handleRegister();
+                        break;
+                    case "LOGIN":
+                        handleLogin();
+                        break;
+                    case "UPLOAD":
+                        if (!handleUpload()) {
+                            return false;
+                        }
+                        break;
+                    case "DOWNLOAD":
+                        handleDownload();
+                        break;
+                    case "LIST_FILES":
+                        handleListFiles();
+                        break;
+                    case "LIST_FILES_PAGE":
+                        handleListFilesPage();
+                        break;
+                    case "CHANGES_SINCE":
+                        handleChangesSince();
+                        break;
+                    case "LIST_USERS":
+                        handleListUsers();
+                        break;
+                    case "SEND_FILE":
+                        handleSendFile();
+                        break;
+                    case "GET_STATS":
+                        handleGetStats();
+                        break;
+                    case "LOGOUT":
+                        handleLogout();
+                        return false;
+                    case "DELETE_FILE":
+                        handleDeleteFile();
+                        break;
+                    case "UPLOAD_INIT":
+                        handleUploadInit();
+                        break;
+                    case "UPLOAD_CHUNK":
+                        if (!handleUploadChunk(false)) {
+                            return false;
+                        }
+                        break;
+                    case "UPLOAD_CHUNK_CODEC":
+                        if (!handleUploadChunk(true)) {
+                            return false;
+                        }
+                        break;
+                    case "UPLOAD_RESUME":
+                        handleUploadResume();
+                        break;
+                    case "UPLOAD_STATUS":
+                        handleUploadStatus();
+                        break;
+                    case "UPLOAD_BY_HASH":
+                        handleUploadByHash();
+                        break;
+                    case "UPLOAD_OFFER_CHUNKS":
+                        if (!handleUploadOfferChunks()) {
+                            return false;
+                        }
+                        break;
+                    case "ATTACH":
+                        handleAttach();
+                        break;
+                    case "SUBSCRIBE":
+                        if (handleSubscribe()) {
+                            // Only pushed events go over this connection from now on
+                            return false;
+                        }
+                        break;
+                    case "UPLOAD_COMPLETE":
+                        handleUploadComplete();
+                        break;
+                    case "DOWNLOAD_RANGE":
+                        handleDownloadRange(false);
+                        break;
+                    case "DOWNLOAD_RANGE_CODEC":
+                        handleDownloadRange(true);
+                        break;
+                    case "CODECS":
+                        handleCodecs();
+                        break;
+                    default:
+                        dos.writeUTF("ERROR: Unknown command");
+                }
+            } finally {
+                dos.flush();
+                metrics.command(command).recordSince(start);
+            }
+            return true;
+        }
+        
+        private ReadableByteChannel inputChannel() {
+            if (tlsChannel != null) {
+                return tlsChannel;
+            }
+            SocketChannel channel = socket.getChannel();
+            return channel != null ? channel : Channels.newChannel(dis);
+        }
+        
+        private WritableByteChannel outputChannel() {
+            if (tlsChannel != null) {
+                return tlsChannel;
+            }
+            SocketChannel channel = socket.getChannel();
+            return channel != null ? channel : Channels.newChannel(dos);
+        }
+        
+        private void sendFile(BlobStore.Content content, long position, long count) throws IOException {
+            TransferScheduler.Flow flow = shaper.open(currentUser.getUsername(), content.size(), false);
+            long quantum = flow.quantum();
+            metrics.transfersInFlight.increment();
+            try {
+                long end = position + count;
+                for (long pos = position; pos < end; ) {
+                    // Slices end on quantum boundaries, which are also boundaries of encrypted chunks
+                    long sliceEnd = end - pos <= quantum ? end : Math.min(end, (pos / quantum + 1) * quantum);
+                    flow.acquire(sliceEnd - pos);
+                    content.sendTo(pos, sliceEnd - pos, outputChannel());
+                    pos = sliceEnd;
+                }
+                metrics.bytesSent.add(count);
+            } finally {
+                metrics.transfersInFlight.decrement();
+            }
+        }
+        
+        // Read and compressed on the compression workers while earlier frames go out
+        private void sendCompressed(BlobStore.Content content, long position, long count,
+                                    TransferCompression.Policy policy) throws IOException {
+            WritableByteChannel target = shaper.open(currentUser.getUsername(), content.size(), false)
+                    .shape(outputChannel());
+            metrics.transfersInFlight.increment();
+            try {
+                // Compacted content holds the frames as they go on the wire; only ranges that cut
+                // through a frame need it decompressed and compressed again
+                long wire = content.sendFrames(position, count, target);
+                if (wire < 0) {
+                    wire = compression.send((at, buffer) -> content.read(position + at, buffer), count,
+                            content.isCompressed() ? TransferCompression.Policy.COMPRESS : policy, target);
+                }
+                metrics.bytesSent.add(count);
+                metrics.compressionSaved.add(Math.max(0, count - wire));
+            } finally {
+                metrics.transfersInFlight.decrement();
+            }
+        }
+        
+        // Codecs this server takes, best first; none when compression is off. Without a body, so older
+        // servers just answer with an error.
+        private void handleCodecs() throws IOException {
+            List<String> codecs = COMPRESSION ? TransferCompression.CODECS : List.of();
+            dos.writeUTF("SUCCESS");
+            dos.writeInt(codecs.size());
+            for (String codec : codecs) {
+                dos.writeUTF(codec);
+            }
+        }
+        
+        @Override
+        public boolean hasBufferedInput() throws IOException {
+            return tlsChannel != null ? tlsChannel.hasBufferedInput() : dis.available() > 0;
+        }
+        
+        @Override
+        public void close() {
+            metrics.connections.decrement();
+            if (subscribed) {
+                // The event hub owns the connection now
+                return;
+            }
+            log("Client disconnected: " + (currentUser != null ? currentUser.getUsername() : "Unknown"));
+            if (currentUser != null && !attachedStream) {
+                setOnline(currentUser, false);
+                onlineUsers.remove(currentUser.getUsername());
+            }
+            try {
+                if (tlsChannel != null) {
+                    tlsChannel.close();
+                } else {
+                    socket.close();
                 }
+            } catch (IOException e) {
+                // Already gone
             }
         }
         
@@ -157,15 +842,19 @@ public class ShareITServer {
                 String password = dis.readUTF();
                 String email = dis.readUTF();
                 
-                if (users.containsKey(username)) {
+                // Don't spend a hash on a name that's taken; add() below still settles races
+                if (users.get(username) != null) {
                     dos.writeUTF("ERROR: Username already exists");
                     return;
                 }
-                
-                String passwordHash = EncryptionUtil.hashPassword(password);
-                User newUser = new User(username, passwordHash, email);
-                users.put(username, newUser);
-                saveUsers();
+                User newUser = new User(username, passwords.hash(password), email);
+                if (!users.add(newUser)) {
+                    dos.writeUTF("ERROR: Username already exists");
+                    return;
+                }
+                journal.logUser(newUser);
+                journal.sync();
+                changeLog.userUpdated(username);
                 
                 dos.writeUTF("SUCCESS: Registration successful");
                 log("New user registered: " + username);
@@ -179,14 +868,14 @@ public class ShareITServer {
                 String username = dis.readUTF();
                 String password = dis.readUTF();
                 
-                User user = users.get(username);
-                if (user == null || !user.getPasswordHash().equals(EncryptionUtil.hashPassword(password))) {
+                User user = authenticate(username, password);
+                if (user == null) {
                     dos.writeUTF("ERROR: Invalid credentials");
                     return;
                 }
                 
                 currentUser = user;
-                currentUser.setOnline(true);
+                setOnline(currentUser, true);
                 onlineUsers.put(username, socket);
                 
                 dos.writeUTF("SUCCESS: Login successful");
@@ -196,10 +885,63 @@ public class ShareITServer {
             }
         }
         
-        private void handleUpload() throws IOException {
+        private User authenticate(String username, String password) throws Exception {
+            User user = users.get(username);
+            String storedHash = user != null ? user.getPasswordHash() : null;
+            if (!passwords.verify(username, storedHash, password, rehashed -> upgradePassword(user, rehashed))) {
+                return null;
+            }
+            return user;
+        }
+        
+        private void handleAttach() throws IOException {
+            try {
+                String username = dis.readUTF();
+                String password = dis.readUTF();
+                
+                User user = authenticate(username, password);
+                if (user == null) {
+                    dos.writeUTF("ERROR: Invalid credentials");
+                    return;
+                }
+                
+                currentUser = user;
+                attachedStream = true;
+                
+                dos.writeUTF("SUCCESS: Stream attached");
+            } catch (Exception e) {
+                dos.writeUTF("ERROR: Attach failed");
+            }
+        }
+        
+        // Turns this connection into the client's event stream; like ATTACH it doesn't affect presence
+        private boolean handleSubscribe() throws IOException {
+            String username = dis.readUTF();
+            String password = dis.readUTF();
+            
+            User user;
+            try {
+                user = authenticate(username, password);
+            } catch (Exception e) {
+                user = null;
+            }
+            if (user == null) {
+                dos.writeUTF("ERROR: Invalid credentials");
+                return false;
+            }
+            
+            subscribed = true;
+            eventHub.subscribe(username, socket, dos);
+            log("Client subscribed to events: " + username);
+            return true;
+        }
+        
+        // Returns false when the connection has to be closed: a refused body is not read, since draining it
+        // would spend the bandwidth admission is there to save
+        private boolean handleUpload() throws IOException {
             if (currentUser == null) {
                 dos.writeUTF("ERROR: Not authenticated");
-                return;
+                return true;
             }
             
             try {
@@ -207,36 +949,56 @@ public class ShareITServer {
                 long fileSize = dis.readLong();
                 String receiver = dis.readUTF(); // Can be "public" or specific username
                 
-                if (!currentUser.canUpload(fileSize)) {
+                QuotaLedger.Reservation reservation = quotas.reserve(currentUser, fileSize);
+                if (reservation == null) {
                     dos.writeUTF("ERROR: Storage limit exceeded");
-                    return;
+                    return false;
                 }
                 
+                // Wait for a stream before reading the body, so a burst queues in the socket buffers
                 String fileId = UUID.randomUUID().toString();
-                String filePath = UPLOAD_DIR + fileId + "_" + fileName;
+                String busy = null;
+                UploadAdmission.Stream stream = admission.enter(currentUser.getUsername());
+                if (stream == null) {
+                    busy = "Server busy";
+                } else if (!admission.reserveSpace(fileId, fileSize)) {
+                    stream.close();
+                    busy = "Not enough disk space";
+                }
+                if (busy != null) {
+                    reservation.close();
+                    dos.writeUTF(admission.retryAfter(busy));
+                    return false;
+                }
                 
                 FileTransfer transfer = new FileTransfer(fileId, fileName, fileSize, currentUser.getUsername(), receiver);
-                fileTransfers.put(fileId, transfer);
-                
-                // Update user's file list
-                userFiles.computeIfAbsent(currentUser.getUsername(), k -> new HashSet<>()).add(transfer);
-                
-                // Save file
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    byte[] buffer = new byte[8192];
-                    long totalRead = 0;
-                    int bytesRead;
+                boolean stored;
+                try (reservation; stream) {
+                    addTransfer(transfer);
                     
-                    while (totalRead < fileSize && (bytesRead = dis.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
+                    // Save file: hashed on the way in, stored once per distinct content, exactly fileSize bytes
+                    metrics.transfersInFlight.increment();
+                    try {
+                        transfer.setContentHash(blobStore.ingest(
+                                shaper.open(currentUser.getUsername(), fileSize, true).shape(inputChannel()), fileSize));
+                        metrics.bytesReceived.add(fileSize);
+                    } catch (IOException e) {
+                        removeTransfer(transfer);
+                        throw e;
+                    } finally {
+                        metrics.transfersInFlight.decrement();
                     }
+                    stored = commitUpload(transfer, reservation);
+                } finally {
+                    admission.releaseSpace(fileId);
+                }
+                if (!stored) {
+                    dos.writeUTF("ERROR: Upload failed");
+                    return true;
                 }
                 
-                // Update user storage
-                currentUser.setStorageUsed(currentUser.getStorageUsed() + fileSize);
-                
-                transfer.setStatus("COMPLETED");
+                finishTransfer(transfer);
+                journal.sync();
                 dos.writeUTF("SUCCESS");
                 dos.writeUTF(fileId);
                 
@@ -245,6 +1007,7 @@ public class ShareITServer {
             } catch (Exception e) {
                 dos.writeUTF("ERROR: Upload failed");
             }
+            return true;
         }
         
         private void handleDownload() throws IOException {
@@ -262,62 +1025,493 @@ public class ShareITServer {
             }
             
             // Check permissions
-            if (!transfer.getReceiver().equals("public") && 
-                !transfer.getReceiver().equals(currentUser.getUsername()) &&
-                !transfer.getSender().equals(currentUser.getUsername())) {
+            if (!canAccess(transfer)) {
                 dos.writeUTF("ERROR: Access denied");
                 return;
             }
             
-            String filePath = UPLOAD_DIR + fileId + "_" + transfer.getFileName();
-            File file = new File(filePath);
+            if (!"COMPLETED".equals(transfer.getStatus())) {
+                dos.writeUTF("ERROR: File upload not finished");
+                return;
+            }
             
-            if (!file.exists()) {
+            BlobStore.Content content = openContent(transfer);
+            if (content == null) {
                 dos.writeUTF("ERROR: File not found on server");
                 return;
             }
             
+            try (content) {
+                long length = content.size();
+                dos.writeUTF("SUCCESS");
+                dos.writeUTF(transfer.getFileName());
+                dos.writeLong(length);
+                dos.flush();
+                
+                // Straight from the page cache to the socket unless the content or the connection is encrypted
+                sendFile(content, 0, length);
+            }
+            
+            log("File downloaded: " + transfer.getFileName() + " by " + currentUser.getUsername());
+        }
+        
+        private void handleUploadInit() throws IOException {
+            if (currentUser == null) {
+                dos.writeUTF("ERROR: Not authenticated");
+                return;
+            }
+            
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            String receiver = dis.readUTF(); // Can be "public" or specific username
+            int chunkSize = dis.readInt();
+            
+            if (fileSize < 0 || chunkSize <= 0) {
+                dos.writeUTF("ERROR: Invalid upload");
+                return;
+            }
+            
+            // Held until UPLOAD_COMPLETE or until the unfinished upload is deleted
+            QuotaLedger.Reservation reservation = quotas.reserve(currentUser, fileSize);
+            if (reservation == null) {
+                dos.writeUTF("ERROR: Storage limit exceeded");
+                return;
+            }
+            
+            // The file is sized up front but sparse; the space is held until the chunks have filled it.
+            // Streams are only taken per chunk, so an upload that goes idle keeps no one else waiting.
+            String fileId = UUID.randomUUID().toString();
+            if (!admission.reserveSpace(fileId, fileSize)) {
+                reservation.close();
+                dos.writeUTF(admission.retryAfter("Not enough disk space"));
+                return;
+            }
+            
+            FileTransfer transfer = new FileTransfer(fileId, fileName, fileSize, currentUser.getUsername(), receiver);
+            transfer.startChunkedUpload(Math.min(chunkSize, MAX_CHUNK_SIZE));
+            
+            // Size the file up front so chunks can land at any offset
+            try (RandomAccessFile file = new RandomAccessFile(storagePath(transfer).toFile(), "rw")) {
+                file.setLength(fileSize);
+            } catch (IOException e) {
+                reservation.close();
+                releaseUpload(fileId);
+                throw e;
+            }
+            
+            uploadReservations.put(fileId, reservation);
+            addTransfer(transfer);
+            
             dos.writeUTF("SUCCESS");
-            dos.writeUTF(transfer.getFileName());
-            dos.writeLong(file.length());
+            dos.writeUTF(fileId);
+            dos.writeInt(transfer.getChunkSize());
+            
+            log("Chunked upload started: " + fileName + " by " + currentUser.getUsername() + " to " + receiver);
+        }
+        
+        // UPLOAD_CHUNK_CODEC names the codec of the body after the length. Returns false when the
+        // connection has to be closed.
+        private boolean handleUploadChunk(boolean withCodec) throws IOException {
+            String fileId = dis.readUTF();
+            long offset = dis.readLong();
+            int length = dis.readInt();
+            String codec = withCodec ? dis.readUTF() : TransferCompression.NONE;
+            boolean compressed = !codec.equals(TransferCompression.NONE);
+            if (compressed && !TransferCompression.CODECS.contains(codec)) {
+                // No way to tell where the body ends
+                throw new IOException("Unknown codec " + codec);
+            }
             
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
+            FileTransfer transfer = fileTransfers.get(fileId);
+            String error = null;
+            if (currentUser == null) {
+                error = "ERROR: Not authenticated";
+            } else if (transfer == null || !transfer.getSender().equals(currentUser.getUsername())) {
+                error = "ERROR: File not found or access denied";
+            } else if (!transfer.isValidChunk(offset, length)) {
+                error = "ERROR: Invalid chunk";
+            }
+            
+            if (error != null) {
+                // Drain the chunk body (at most MAX_CHUNK_SIZE) so the next command stays framed
+                if (compressed) {
+                    compression.receive(inputChannel(), length, (position, data) -> { });
+                } else {
+                    dis.skipNBytes(length);
                 }
+                dos.writeUTF(error);
+                return true;
             }
             
-            log("File downloaded: " + transfer.getFileName() + " by " + currentUser.getUsername());
+            // Each chunk waits for a stream with its body left in the socket buffers. Refused, the connection
+            // is closed rather than drained and the client reconnects and resumes.
+            UploadAdmission.Stream stream = admission.enter(currentUser.getUsername());
+            if (stream == null) {
+                dos.writeUTF(admission.retryAfter("Server busy"));
+                return false;
+            }
+            
+            metrics.transfersInFlight.increment();
+            try (stream; FileChannel fileChannel = FileChannel.open(storagePath(transfer), StandardOpenOption.WRITE)) {
+                ReadableByteChannel source = shaper.open(currentUser.getUsername(), transfer.getFileSize(), true)
+                        .shape(inputChannel());
+                if (compressed) {
+                    long wire = compression.receive(source, length, (position, data) -> {
+                        while (data.hasRemaining()) {
+                            fileChannel.write(data, offset + position + data.position());
+                        }
+                    });
+                    metrics.compressionSaved.add(Math.max(0, length - wire));
+                } else {
+                    ChannelIO.receiveFile(source, fileChannel, offset, length);
+                }
+                metrics.bytesReceived.add(length);
+            } finally {
+                metrics.transfersInFlight.decrement();
+            }
+            admission.written(fileId, length);
+            transfer.markChunkReceived(offset);
+            
+            dos.writeUTF("SUCCESS");
+            dos.writeLong(transfer.getCommittedBytes());
+            return true;
         }
         
-        private void handleListFiles() throws IOException {
+        // The chunked upload finished or was given up: its disk space is free again
+        private void releaseUpload(String fileId) {
+            admission.releaseSpace(fileId);
+        }
+        
+        private void handleUploadResume() throws IOException {
+            if (currentUser == null) {
+                dos.writeUTF("ERROR: Not authenticated");
+                return;
+            }
+            
+            String fileId = dis.readUTF();
+            FileTransfer transfer = fileTransfers.get(fileId);
+            
+            if (transfer == null || !transfer.getSender().equals(currentUser.getUsername())) {
+                dos.writeUTF("ERROR: File not found or access denied");
+                return;
+            }
+            
+            if (!"UPLOADING".equals(transfer.getStatus())) {
+                dos.writeUTF("ERROR: Upload is not resumable");
+                return;
+            }
+            
+            dos.writeUTF("SUCCESS");
+            dos.writeLong(transfer.getFileSize());
+            dos.writeInt(transfer.getChunkSize());
+            dos.writeLong(transfer.getCommittedBytes());
+            
+            log("Upload resumed: " + transfer.getFileName() + " at " + transfer.getCommittedBytes() + " bytes");
+        }
+        
+        // Whole-file dedup: if the content is already stored the transfer is created without any bytes
+        private void handleUploadByHash() throws IOException {
             if (currentUser == null) {
                 dos.writeUTF("ERROR: Not authenticated");
                 return;
             }
             
-            // Get files accessible to current user
-            List<FileTransfer> accessibleFiles = new ArrayList<>();
-            for (FileTransfer transfer : fileTransfers.values()) {
-                if (transfer.getReceiver().equals("public") ||
-                    transfer.getReceiver().equals(currentUser.getUsername()) ||
-                    transfer.getSender().equals(currentUser.getUsername())) {
-                    accessibleFiles.add(transfer);
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            String receiver = dis.readUTF();
+            String contentHash = dis.readUTF();
+            
+            QuotaLedger.Reservation reservation = quotas.reserve(currentUser, fileSize);
+            if (reservation == null) {
+                dos.writeUTF("ERROR: Storage limit exceeded");
+                return;
+            }
+            
+            String fileId = UUID.randomUUID().toString();
+            FileTransfer transfer;
+            try (reservation) {
+                if (!blobStore.retain(contentHash, fileSize)) {
+                    dos.writeUTF("MISSING");
+                    return;
+                }
+                
+                transfer = new FileTransfer(fileId, fileName, fileSize, currentUser.getUsername(), receiver);
+                transfer.setContentHash(contentHash);
+                transfer.setStatus("COMPLETED");
+                transfer = compact(transfer);
+                // Journaled before anyone can see it, so a delete's record always comes after
+                journal.logTransfer(transfer);
+                addTransfer(transfer);
+                reservation.commit();
+            }
+            journal.sync();
+            
+            dos.writeUTF("SUCCESS");
+            dos.writeUTF(fileId);
+            
+            log("File shared by hash: " + fileName + " by " + currentUser.getUsername() + " to " + receiver);
+        }
+        
+        // Chunk dedup: fills every offered chunk the store already has, answers with the chunks still missing.
+        // Returns false when the connection has to be closed: a refused offer's hashes are not read, since
+        // their count can't be trusted.
+        private boolean handleUploadOfferChunks() throws IOException {
+            String fileId = dis.readUTF();
+            int count = dis.readInt();
+            
+            FileTransfer transfer = fileTransfers.get(fileId);
+            String error = null;
+            if (currentUser == null) {
+                error = "ERROR: Not authenticated";
+            } else if (transfer == null || !transfer.getSender().equals(currentUser.getUsername())) {
+                error = "ERROR: File not found or access denied";
+            } else if (!"UPLOADING".equals(transfer.getStatus())) {
+                error = "ERROR: Upload is not resumable";
+            } else if (count < 0 || count > transfer.getChunkCount()) {
+                error = "ERROR: Invalid chunk count";
+            }
+            if (error != null) {
+                dos.writeUTF(error);
+                return false;
+            }
+            
+            String[] chunkHashes = new String[count];
+            for (int i = 0; i < count; i++) {
+                chunkHashes[i] = dis.readUTF();
+            }
+            
+            // Chunk hashes are only comparable when both sides cut the file the same way
+            if (transfer.getChunkSize() == ContentHasher.CHUNK_SIZE && chunkHashes.length == transfer.getChunkCount()) {
+                int reused = 0;
+                try (FileChannel fileChannel = FileChannel.open(storagePath(transfer), StandardOpenOption.WRITE)) {
+                    for (int chunk : transfer.getMissingChunks()) {
+                        long offset = (long) chunk * transfer.getChunkSize();
+                        int length = (int) Math.min(transfer.getChunkSize(), transfer.getFileSize() - offset);
+                        if (blobStore.copyChunk(chunkHashes[chunk], length, fileChannel, offset)) {
+                            transfer.markChunkReceived(offset);
+                            reused++;
+                        }
+                    }
+                }
+                if (reused > 0) {
+                    log("Reused " + reused + " stored chunks for " + transfer.getFileName());
                 }
             }
             
+            int[] missing = transfer.getMissingChunks();
+            dos.writeUTF("SUCCESS");
+            dos.writeInt(missing.length);
+            for (int chunk : missing) {
+                dos.writeInt(chunk);
+            }
+            return true;
+        }
+        
+        private void handleUploadStatus() throws IOException {
+            if (currentUser == null) {
+                dos.writeUTF("ERROR: Not authenticated");
+                return;
+            }
+            
+            String fileId = dis.readUTF();
+            FileTransfer transfer = fileTransfers.get(fileId);
+            
+            if (transfer == null || !transfer.getSender().equals(currentUser.getUsername())) {
+                dos.writeUTF("ERROR: File not found or access denied");
+                return;
+            }
+            
+            if (!"UPLOADING".equals(transfer.getStatus())) {
+                dos.writeUTF("ERROR: Upload is not resumable");
+                return;
+            }
+            
+            int[] missing = transfer.getMissingChunks();
+            dos.writeUTF("SUCCESS");
+            dos.writeLong(transfer.getFileSize());
+            dos.writeInt(transfer.getChunkSize());
+            dos.writeInt(missing.length);
+            for (int chunk : missing) {
+                dos.writeInt(chunk);
+            }
+        }
+        
+        private void handleUploadComplete() throws IOException {
+            if (currentUser == null) {
+                dos.writeUTF("ERROR: Not authenticated");
+                return;
+            }
+            
+            String fileId = dis.readUTF();
+            FileTransfer transfer = fileTransfers.get(fileId);
+            
+            if (transfer == null || !transfer.getSender().equals(currentUser.getUsername())) {
+                dos.writeUTF("ERROR: File not found or access denied");
+                return;
+            }
+            
+            // Under the transfer's lock, so a delete either got in first or finds the upload FINISHING
+            QuotaLedger.Reservation reservation;
+            String error = null;
+            synchronized (transfer) {
+                // Taken at UPLOAD_INIT; uploads don't outlive a restart, so only a completed one has none
+                reservation = fileTransfers.get(fileId) == transfer ? uploadReservations.remove(fileId) : null;
+                if (reservation == null) {
+                    error = "ERROR: Upload not in progress";
+                } else if (!transfer.completeUpload()) {
+                    // Still needed for the missing chunks
+                    uploadReservations.put(fileId, reservation);
+                    error = "ERROR: Upload incomplete";
+                }
+            }
+            if (error != null) {
+                dos.writeUTF(error);
+                return;
+            }
+            
+            boolean stored;
+            try (reservation) {
+                // Hash the assembled file and move it into the blob store (or drop it if the content is already there)
+                try {
+                    transfer.setContentHash(blobStore.ingestFile(storagePath(transfer)));
+                } catch (IOException | RuntimeException e) {
+                    // What arrived can't be stored, so the upload is given up
+                    removeTransfer(transfer);
+                    Files.deleteIfExists(storagePath(transfer));
+                    releaseUpload(fileId);
+                    throw e;
+                }
+                stored = commitUpload(transfer, reservation);
+            }
+            releaseUpload(fileId);
+            if (!stored) {
+                dos.writeUTF("ERROR: File not found or access denied");
+                return;
+            }
+            finishTransfer(transfer);
+            journal.sync();
+            
+            dos.writeUTF("SUCCESS");
+            dos.writeUTF(fileId);
+            
+            log("File uploaded: " + transfer.getFileName() + " by " + currentUser.getUsername() + " to " + transfer.getReceiver());
+        }
+        
+        // DOWNLOAD_RANGE_CODEC offers a codec after the length; the answer says whether it is used
+        private void handleDownloadRange(boolean withCodec) throws IOException {
+            if (currentUser == null) {
+                dos.writeUTF("ERROR: Not authenticated");
+                return;
+            }
+            
+            String fileId = dis.readUTF();
+            long offset = dis.readLong();
+            long length = dis.readLong(); // Negative means up to the end of the file
+            String offered = withCodec ? dis.readUTF() : TransferCompression.NONE;
+            FileTransfer transfer = fileTransfers.get(fileId);
+            
+            if (transfer == null) {
+                dos.writeUTF("ERROR: File not found");
+                return;
+            }
+            
+            if (!canAccess(transfer)) {
+                dos.writeUTF("ERROR: Access denied");
+                return;
+            }
+            
+            if (!"COMPLETED".equals(transfer.getStatus())) {
+                dos.writeUTF("ERROR: File upload not finished");
+                return;
+            }
+            
+            BlobStore.Content content = openContent(transfer);
+            if (content == null) {
+                dos.writeUTF("ERROR: File not found on server");
+                return;
+            }
+            
+            try (content) {
+                long size = content.size();
+                if (offset < 0 || offset > size) {
+                    dos.writeUTF("ERROR: Invalid range");
+                    return;
+                }
+                long rangeLength = length < 0 ? size - offset : Math.min(length, size - offset);
+                
+                TransferCompression.Policy policy = TransferCompression.policyFor(transfer.getFileType());
+                // Compacted content is deflated already, so it goes out compressed whatever its type
+                String codec = COMPRESSION && (policy != TransferCompression.Policy.SKIP || content.isCompressed())
+                        ? TransferCompression.choose(List.of(offered)) : TransferCompression.NONE;
+                
+                dos.writeUTF("SUCCESS");
+                dos.writeUTF(transfer.getFileName());
+                dos.writeLong(size);
+                dos.writeLong(rangeLength);
+                if (withCodec) {
+                    dos.writeUTF(codec);
+                }
+                dos.flush();
+                
+                if (!codec.equals(TransferCompression.NONE)) {
+                    sendCompressed(content, offset, rangeLength, policy);
+                } else {
+                    // Encrypted content is only decrypted, and verified, for the chunks the range touches
+                    sendFile(content, offset, rangeLength);
+                }
+            }
+        }
+        
+        private boolean canAccess(FileTransfer transfer) {
+            return transfer.getReceiver().equals("public") ||
+                   transfer.getReceiver().equals(currentUser.getUsername()) ||
+                   transfer.getSender().equals(currentUser.getUsername());
+        }
+        
+        private void handleListFiles() throws IOException {
+            if (currentUser == null) {
+                dos.writeUTF("ERROR: Not authenticated");
+                return;
+            }
+            
+            // Get files accessible to current user, straight from the indexes
+            List<FileTransfer> accessibleFiles = fileIndex.visibleTo(currentUser.getUsername());
+            
             dos.writeInt(accessibleFiles.size());
             for (FileTransfer transfer : accessibleFiles) {
-                dos.writeUTF(transfer.getFileId());
-                dos.writeUTF(transfer.getFileName());
-                dos.writeUTF(transfer.getSender());
-                dos.writeUTF(transfer.getReceiver());
-                dos.writeLong(transfer.getFileSize());
-                dos.writeUTF(transfer.getFileType());
-                dos.writeUTF(transfer.getTimestamp().toString());
+                writeFileRow(dos, transfer);
+            }
+        }
+        
+        private void handleListFilesPage() throws IOException {
+            String sortKey = dis.readUTF(); // TIMESTAMP, SIZE or NAME
+            boolean descending = dis.readBoolean();
+            String cursor = dis.readUTF(); // Empty for the first page
+            int pageSize = dis.readInt();
+            String fileType = dis.readUTF(); // Empty filters match everything
+            String sender = dis.readUTF();
+            String namePrefix = dis.readUTF();
+            
+            if (currentUser == null) {
+                dos.writeUTF("ERROR: Not authenticated");
+                return;
+            }
+            
+            FileIndex.Page page;
+            try {
+                page = fileIndex.page(currentUser.getUsername(), FileIndex.SortKey.valueOf(sortKey.toUpperCase()),
+                        descending, cursor, Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE)), fileType, sender, namePrefix);
+            } catch (IllegalArgumentException | java.time.DateTimeException e) {
+                dos.writeUTF("ERROR: Invalid listing request");
+                return;
             }
+            
+            dos.writeUTF("SUCCESS");
+            dos.writeInt(page.files.size());
+            for (FileTransfer transfer : page.files) {
+                writeFileRow(dos, transfer);
+            }
+            dos.writeUTF(page.nextCursor);
         }
         
         private void handleListUsers() throws IOException {
@@ -326,13 +1520,51 @@ public class ShareITServer {
                 return;
             }
             
-            dos.writeInt(users.size());
-            for (User user : users.values()) {
-                dos.writeUTF(user.getUsername());
-                dos.writeUTF(user.getEmail());
-                dos.writeBoolean(user.isOnline());
-                dos.writeLong(user.getStorageUsed());
-                dos.writeLong(user.getStorageLimit());
+            Collection<User> allUsers = users.values();
+            dos.writeInt(allUsers.size());
+            for (User user : allUsers) {
+                writeUserRow(dos, user);
+            }
+        }
+        
+        // Deltas since the client's version; RESET tells it to reload everything and continue from the new version
+        private void handleChangesSince() throws IOException {
+            long since = dis.readLong();
+            
+            if (currentUser == null) {
+                dos.writeUTF("ERROR: Not authenticated");
+                return;
+            }
+            
+            long current = changeLog.currentVersion();
+            List<ChangeLog.Change> changes = changeLog.since(since);
+            if (changes == null) {
+                dos.writeUTF("RESET");
+                dos.writeLong(current);
+                return;
+            }
+            
+            String username = currentUser.getUsername();
+            List<ChangeLog.Change> visible = new ArrayList<>(changes.size());
+            Set<String> updatedUsers = new HashSet<>();
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                ChangeLog.Change change = changes.get(i);
+                if (change.type == ChangeLog.Type.USER_UPDATED) {
+                    // The newest row of a user carries all earlier updates
+                    if (updatedUsers.add(change.username) && users.contains(change.username)) {
+                        visible.add(change);
+                    }
+                } else if (change.isVisibleTo(username)) {
+                    visible.add(change);
+                }
+            }
+            Collections.reverse(visible);
+            
+            dos.writeUTF("SUCCESS");
+            dos.writeLong(changes.isEmpty() ? since : changes.get(changes.size() - 1).version);
+            dos.writeInt(visible.size());
+            for (ChangeLog.Change change : visible) {
+                writeChange(dos, change);
             }
         }
         
@@ -351,7 +1583,7 @@ public class ShareITServer {
             dos.writeUTF(currentUser.getEmail());
             dos.writeLong(currentUser.getStorageUsed());
             dos.writeLong(currentUser.getStorageLimit());
-            dos.writeInt(userFiles.getOrDefault(currentUser.getUsername(), new HashSet<>()).size());
+            dos.writeInt(fileIndex.countSentBy(currentUser.getUsername()));
             dos.writeInt(onlineUsers.size());
         }
         
@@ -362,26 +1594,53 @@ public class ShareITServer {
             }
             
             String fileId = dis.readUTF();
-            FileTransfer transfer = fileTransfers.get(fileId);
-            
-            if (transfer == null || !transfer.getSender().equals(currentUser.getUsername())) {
-                dos.writeUTF("ERROR: File not found or access denied");
+            FileTransfer transfer;
+            String error = null;
+            while (true) {
+                transfer = fileTransfers.get(fileId);
+                if (transfer == null || !transfer.getSender().equals(currentUser.getUsername())) {
+                    error = "ERROR: File not found or access denied";
+                    break;
+                }
+                // The same lock as finishing an upload; uploads being received or stored can't be deleted
+                // until they are done, chunked ones waiting for chunks can be given up
+                synchronized (transfer) {
+                    if (fileTransfers.get(fileId) != transfer) {
+                        continue; // Swapped for its compact copy meanwhile
+                    }
+                    String status = transfer.getStatus();
+                    if (!"COMPLETED".equals(status) && !"UPLOADING".equals(status)) {
+                        error = "ERROR: Upload in progress, try again when it is done";
+                    } else if (!removeTransfer(transfer)) {
+                        // Remove from collections first so a concurrent delete can't release the content twice
+                        error = "ERROR: File not found or access denied";
+                    }
+                    break;
+                }
+            }
+            if (error != null) {
+                dos.writeUTF(error);
                 return;
             }
             
-            // Delete physical file
-            String filePath = UPLOAD_DIR + fileId + "_" + transfer.getFileName();
-            File file = new File(filePath);
-            if (file.exists()) {
-                file.delete();
+            // Drop this reference to the content; an unfinished upload just loses what arrived so far
+            if (transfer.getContentHash() != null) {
+                blobStore.release(transfer.getContentHash());
+            } else {
+                Files.deleteIfExists(storagePath(transfer));
             }
             
-            // Update storage
-            currentUser.setStorageUsed(currentUser.getStorageUsed() - transfer.getFileSize());
-            
-            // Remove from collections
-            fileTransfers.remove(fileId);
-            userFiles.get(currentUser.getUsername()).remove(transfer);
+            // Update storage; unfinished uploads only give back their reservation
+            if ("COMPLETED".equals(transfer.getStatus())) {
+                quotas.free(currentUser, transfer.getFileSize());
+            } else {
+                QuotaLedger.Reservation reservation = uploadReservations.remove(fileId);
+                if (reservation != null) {
+                    reservation.close();
+                }
+                releaseUpload(fileId);
+            }
+            journal.sync();
             
             dos.writeUTF("SUCCESS: File deleted");
             log("File deleted: " + transfer.getFileName() + " by " + currentUser.getUsername());
@@ -389,7 +1648,7 @@ public class ShareITServer {
         
         private void handleLogout() throws IOException {
             if (currentUser != null) {
-                currentUser.setOnline(false);
+                setOnline(currentUser, false);
                 onlineUsers.remove(currentUser.getUsername());
                 log("User logged out: " + currentUser.getUsername());
             }
@@ -0,0 +1,239 @@
+package server;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TLS over a SocketChannel, driven by an SSLEngine so it works with every connection engine. Nothing
+ * happens until the first read or write: the handshake runs then, on whichever thread serves the
+ * connection, so the nio selector thread never waits for a handshake.
+ *
+ * Records that were read from the socket but not yet handed out stay buffered here, where the socket
+ * can't see them; {@link #hasBufferedInput()} reports them so a selector doesn't wait for bytes that
+ * already arrived. Reads and writes may come from different threads (e.g. event pushes).
+ */
+public class TlsChannel implements ByteChannel {
+    
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // Guarded by readLock; netIn is kept ready for filling, appIn ready for draining
+    private final Object readLock = new Object();
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    // Guarded by writeLock
+    private final Object writeLock = new Object();
+    private ByteBuffer netOut;
+    private volatile boolean handshaken;
+    private boolean inputClosed;
+    
+    public TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        appIn.flip();
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        handshake();
+        synchronized (readLock) {
+            while (!appIn.hasRemaining()) {
+                if (inputClosed) {
+                    return -1;
+                }
+                if (!unwrap(true)) {
+                    // Only when the socket is non-blocking and has nothing more
+                    return 0;
+                }
+            }
+            int n = Math.min(dst.remaining(), appIn.remaining());
+            ByteBuffer slice = appIn.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            appIn.position(appIn.position() + n);
+            return n;
+        }
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        handshake();
+        synchronized (writeLock) {
+            int written = 0;
+            while (src.hasRemaining()) {
+                written += wrap(src);
+            }
+            return written;
+        }
+    }
+    
+    /**
+     * True if decrypted data is waiting, or whole records are buffered that decrypt to some. Never
+     * reads from the socket.
+     */
+    public boolean hasBufferedInput() throws IOException {
+        synchronized (readLock) {
+            while (!appIn.hasRemaining() && !inputClosed && netIn.position() > 0) {
+                if (!unwrap(false)) {
+                    break;
+                }
+            }
+            return appIn.hasRemaining();
+        }
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+    
+    // Sends close_notify if the socket still takes it, then closes the socket
+    @Override
+    public void close() throws IOException {
+        try {
+            if (handshaken && channel.isBlocking()) {
+                synchronized (writeLock) {
+                    engine.closeOutbound();
+                    wrap(EMPTY);
+                }
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            channel.close();
+        }
+    }
+    
+    private void handshake() throws IOException {
+        if (handshaken) {
+            return;
+        }
+        synchronized (readLock) {
+            synchronized (writeLock) {
+                if (handshaken) {
+                    return;
+                }
+                engine.beginHandshake();
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                while (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                        && status != SSLEngineResult.HandshakeStatus.FINISHED) {
+                    switch (status) {
+                        case NEED_TASK:
+                            runTasks();
+                            break;
+                        case NEED_WRAP:
+                            wrap(EMPTY);
+                            break;
+                        default:
+                            if (!unwrap(true) || inputClosed) {
+                                throw new SSLException("Connection closed during the TLS handshake");
+                            }
+                    }
+                    status = engine.getHandshakeStatus();
+                }
+                handshaken = true;
+            }
+        }
+    }
+    
+    /**
+     * Unwraps one record from netIn, reading more from the socket first if needed and allowed.
+     * Returns false if nothing could be done without reading.
+     */
+    private boolean unwrap(boolean mayRead) throws IOException {
+        netIn.flip();
+        appIn.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                if (!mayRead) {
+                    return false;
+                }
+                if (!netIn.hasRemaining()) {
+                    netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                }
+                int n = channel.read(netIn);
+                if (n < 0) {
+                    throw new EOFException("Connection closed inside a TLS record");
+                }
+                return n > 0;
+            case BUFFER_OVERFLOW:
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(appIn.capacity() * 2, engine.getSession().getApplicationBufferSize()));
+                appIn = larger.put(appIn).flip();
+                return true;
+            case CLOSED:
+                inputClosed = true;
+                return true;
+            default:
+                afterRecord(result.getHandshakeStatus());
+                return true;
+        }
+    }
+    
+    // Wraps and sends one record; returns the plaintext bytes consumed
+    private int wrap(ByteBuffer src) throws IOException {
+        SSLEngineResult result;
+        while (true) {
+            netOut.clear();
+            result = engine.wrap(src, netOut);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                break;
+            }
+            netOut = ByteBuffer.allocate(Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0 && src.hasRemaining()) {
+            throw new ClosedChannelException();
+        }
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        afterRecord(result.getHandshakeStatus());
+        return result.bytesConsumed();
+    }
+    
+    // Post-handshake messages (session tickets, key updates) are answered as they come
+    private void afterRecord(SSLEngineResult.HandshakeStatus status) throws IOException {
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runTasks();
+        } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP && handshaken) {
+            synchronized (writeLock) {
+                wrap(EMPTY);
+            }
+        }
+    }
+    
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+    
+    // A larger buffer with the same contents, for a buffer being filled
+    private static ByteBuffer grow(ByteBuffer buffer, int atLeast) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, atLeast));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
@@ -0,0 +1,196 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces file data with token buckets: one for the whole server and one per user. Transfers take
+ * tokens one quantum at a time and every grant is queued behind those already handed out, so flows
+ * that keep asking take turns; a flow's quantum is its weight times {@link #QUANTUM}, which gives
+ * uploads and downloads their configured shares.
+ *
+ * Transfers of files up to the small-file size get a priority lane on the global bucket: they may
+ * run up to another burst ahead of the grants queued there, so a short download isn't stuck behind a
+ * large one, but their bytes are paid for like any other and the limit holds for all transfers
+ * together. A grant is one compare-and-set per bucket, a few hundred times a second per flow even at
+ * 10 Gbit/s.
+ */
+public class TransferScheduler {
+    
+    public static final int QUANTUM = 256 * 1024;
+    
+    private final TokenBucket global;
+    private final long userRate;
+    private final long burstBytes;
+    private final long smallTransferBytes;
+    private final int uploadWeight;
+    private final int downloadWeight;
+    private final Map<String, TokenBucket> users = new ConcurrentHashMap<>();
+    
+    /**
+     * @param globalRate bytes per second for all transfers together, 0 for no limit
+     * @param userRate   bytes per second for each user's transfers together, 0 for no limit
+     * @param burstBytes how much an idle bucket lets through at once
+     */
+    public TransferScheduler(long globalRate, long userRate, long burstBytes, long smallTransferBytes,
+                             int uploadWeight, int downloadWeight) {
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, burstBytes) : null;
+        this.userRate = userRate;
+        this.burstBytes = burstBytes;
+        this.smallTransferBytes = smallTransferBytes;
+        this.uploadWeight = Math.max(1, uploadWeight);
+        this.downloadWeight = Math.max(1, downloadWeight);
+    }
+    
+    public boolean isShaping() {
+        return global != null || userRate > 0;
+    }
+    
+    /**
+     * Starts pacing one transfer of a file of fileSize bytes.
+     */
+    public Flow open(String username, long fileSize, boolean upload) {
+        TokenBucket user = userRate > 0 ? users.computeIfAbsent(username, name -> new TokenBucket(userRate, burstBytes)) : null;
+        return new Flow(global, user, fileSize <= smallTransferBytes, !isShaping() ? Long.MAX_VALUE
+                : (long) QUANTUM * (upload ? uploadWeight : downloadWeight));
+    }
+    
+    /**
+     * The buckets one transfer draws from.
+     */
+    public static class Flow {
+        private final TokenBucket global;
+        private final TokenBucket user;
+        // Takes the priority lane on the global bucket
+        private final boolean small;
+        private final long quantum;
+        
+        Flow(TokenBucket global, TokenBucket user, boolean small, long quantum) {
+            this.global = global;
+            this.user = user;
+            this.small = small;
+            this.quantum = quantum;
+        }
+        
+        // Bytes to move per grant; unlimited when nothing is paced
+        public long quantum() {
+            return quantum;
+        }
+        
+        // Waits until count more bytes may be moved
+        public void acquire(long count) throws InterruptedIOException {
+            if (user != null) {
+                user.acquire(count, false);
+            }
+            if (global != null) {
+                global.acquire(count, small);
+            }
+        }
+        
+        /**
+         * The source, paced: bytes are paid for after they are read, so a sender that is ahead
+         * simply finds the connection not being read for a while.
+         */
+        public ReadableByteChannel shape(ReadableByteChannel source) {
+            if (global == null && user == null) {
+                return source;
+            }
+            return new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    if (dst.remaining() > quantum) {
+                        ByteBuffer slice = dst.duplicate();
+                        slice.limit(slice.position() + (int) quantum);
+                        int n = read(slice);
+                        dst.position(slice.position());
+                        return n;
+                    }
+                    int n = source.read(dst);
+                    if (n > 0) {
+                        acquire(n);
+                    }
+                    return n;
+                }
+                
+                @Override
+                public boolean isOpen() {
+                    return source.isOpen();
+                }
+                
+                @Override
+                public void close() throws IOException {
+                    source.close();
+                }
+            };
+        }
+        
+        // The target, paced: every write waits for its bytes first
+        public WritableByteChannel shape(WritableByteChannel target) {
+            if (global == null && user == null) {
+                return target;
+            }
+            return new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    acquire(src.remaining());
+                    return target.write(src);
+                }
+                
+                @Override
+                public boolean isOpen() {
+                    return target.isOpen();
+                }
+                
+                @Override
+                public void close() throws IOException {
+                    target.close();
+                }
+            };
+        }
+    }
+    
+    /**
+     * Token bucket kept as the time its queue of grants runs out (the GCRA form), so taking tokens
+     * is a single compare-and-set and waiting needs no lock.
+     */
+    static class TokenBucket {
+        private final double nanosPerByte;
+        private final long burstNanos;
+        // When everything granted so far has been paid for
+        private final AtomicLong paidUntil = new AtomicLong(System.nanoTime());
+        
+        TokenBucket(long bytesPerSecond, long burstBytes) {
+            nanosPerByte = 1e9 / bytesPerSecond;
+            burstNanos = (long) (Math.max(burstBytes, 1) * nanosPerByte);
+        }
+        
+        // A priority grant may go out another burst earlier than a normal one
+        void acquire(long count, boolean priority) throws InterruptedIOException {
+            long cost = (long) Math.ceil(count * nanosPerByte);
+            long now = System.nanoTime();
+            long sendAt;
+            while (true) {
+                long paid = paidUntil.get();
+                // An idle bucket only saves up a burst worth of tokens
+                long next = Math.max(paid, now - burstNanos) + cost;
+                if (paidUntil.compareAndSet(paid, next)) {
+                    sendAt = next - (priority ? 2 * burstNanos : burstNanos);
+                    break;
+                }
+            }
+            for (long wait = sendAt - now; wait > 0; wait = sendAt - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        }
+    }
+}
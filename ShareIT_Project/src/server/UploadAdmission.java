@@ -0,0 +1,183 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides whether the server takes on more upload data right now. Two things are limited: the
+ * streams writing to disk at once, where a caller beyond the limit waits its turn for a while, and
+ * disk space, where every upload holds the bytes it has yet to write so that uploads admitted
+ * together can't fill the disk between them. A refused upload is told when to come back.
+ *
+ * A stream is taken for one body at a time, a whole upload or a single chunk, and no user may have
+ * more than a few of them at once, so an idle or abandoned upload never keeps anyone else out.
+ */
+public class UploadAdmission {
+    
+    public static final String RETRY_AFTER = "RETRY_AFTER";
+    
+    private final FileStore disk;
+    private final long minFreeBytes;
+    private final Semaphore streams;
+    private final int maxStreams;
+    private final int maxStreamsPerUser;
+    private final int maxWaiting;
+    private final long waitMillis;
+    private final int retryAfterSeconds;
+    private final AtomicInteger waiting = new AtomicInteger();
+    // Bytes each admitted upload still has to write, by upload id; guarded by itself
+    private final Map<String, Long> promised = new HashMap<>();
+    private long promisedTotal;
+    // Streams each user has open, by username
+    private final Map<String, Integer> perUser = new ConcurrentHashMap<>();
+    
+    /**
+     * @param dir               where uploads are written
+     * @param minFreeBytes      space always left free on that disk
+     * @param maxStreams        uploads writing at once
+     * @param maxStreamsPerUser uploads one user may be writing at once; more are refused straight away
+     * @param maxWaiting        uploads that may wait for a stream; more are refused straight away
+     * @param waitMillis        how long one may wait before it is refused
+     */
+    public UploadAdmission(Path dir, long minFreeBytes, int maxStreams, int maxStreamsPerUser, int maxWaiting,
+                           long waitMillis, int retryAfterSeconds) throws IOException {
+        Files.createDirectories(dir);
+        this.disk = Files.getFileStore(dir);
+        this.minFreeBytes = minFreeBytes;
+        this.streams = new Semaphore(maxStreams, true);
+        this.maxStreams = maxStreams;
+        this.maxStreamsPerUser = maxStreamsPerUser;
+        this.maxWaiting = maxWaiting;
+        this.waitMillis = waitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+    
+    /**
+     * Holds bytes of disk space for the upload, or returns false if the disk can't take them on top of
+     * what admitted uploads still have to write.
+     */
+    public boolean reserveSpace(String uploadId, long bytes) throws IOException {
+        long usable = disk.getUsableSpace();
+        synchronized (promised) {
+            if (bytes > usable - minFreeBytes - promisedTotal) {
+                return false;
+            }
+            promised.merge(uploadId, bytes, Long::sum);
+            promisedTotal += bytes;
+            return true;
+        }
+    }
+    
+    // Bytes of the upload that reached the disk, so they no longer need to be held
+    public void written(String uploadId, long bytes) {
+        synchronized (promised) {
+            Long held = promised.get(uploadId);
+            if (held != null) {
+                long released = Math.min(held, bytes);
+                promised.put(uploadId, held - released);
+                promisedTotal -= released;
+            }
+        }
+    }
+    
+    // The upload finished or was given up: whatever it still held is free again
+    public void releaseSpace(String uploadId) {
+        synchronized (promised) {
+            Long held = promised.remove(uploadId);
+            if (held != null) {
+                promisedTotal -= held;
+            }
+        }
+    }
+    
+    public long promisedBytes() {
+        synchronized (promised) {
+            return promisedTotal;
+        }
+    }
+    
+    /**
+     * A stream for the user to write one upload body with, waiting for one if all are busy; null if the
+     * user has too many open, none came free in time or too many are waiting already.
+     */
+    public Stream enter(String user) throws InterruptedIOException {
+        if (perUser.merge(user, 1, Integer::sum) > maxStreamsPerUser) {
+            leave(user);
+            return null;
+        }
+        boolean admitted = false;
+        try {
+            admitted = acquire();
+        } finally {
+            if (!admitted) {
+                leave(user);
+            }
+        }
+        return admitted ? new Stream(user) : null;
+    }
+    
+    private boolean acquire() throws InterruptedIOException {
+        if (streams.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            return streams.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload stream");
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+    
+    private void leave(String user) {
+        perUser.computeIfPresent(user, (name, open) -> open > 1 ? open - 1 : null);
+    }
+    
+    public int activeStreams() {
+        return maxStreams - streams.availablePermits();
+    }
+    
+    public int waitingStreams() {
+        return waiting.get();
+    }
+    
+    // Response telling the client to try again later
+    public String retryAfter(String reason) {
+        return RETRY_AFTER + " " + retryAfterSeconds + ": " + reason;
+    }
+    
+    /**
+     * One admitted stream; closing it lets the next waiting upload in.
+     */
+    public class Stream implements AutoCloseable {
+        private final String user;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        
+        private Stream(String user) {
+            this.user = user;
+        }
+        
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                streams.release();
+                leave(user);
+            }
+        }
+    }
+}
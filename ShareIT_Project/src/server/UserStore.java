@@ -0,0 +1,60 @@
+package server;
+
+import common.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Users by name. Users from the startup snapshot are only decoded when first asked for, so the
+ * server doesn't have to read every account before it can accept connections.
+ */
+public class UserStore {
+
+    private final Map<String, User> loaded = new ConcurrentHashMap<>();
+    private volatile MetadataSnapshot snapshot;
+
+    public void setSnapshot(MetadataSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public User get(String username) {
+        User user = loaded.get(username);
+        MetadataSnapshot base = snapshot;
+        if (user != null || base == null) {
+            return user;
+        }
+        // At most one User object per name, even when several threads miss at once
+        return loaded.computeIfAbsent(username, base::findUser);
+    }
+
+    public boolean contains(String username) {
+        return get(username) != null;
+    }
+
+    // Adds a new user; false if the name is taken
+    public boolean add(User user) {
+        return get(user.getUsername()) == null && loaded.putIfAbsent(user.getUsername(), user) == null;
+    }
+
+    // Replaces a user, e.g. with a newer journal record
+    public void put(User user) {
+        loaded.put(user.getUsername(), user);
+    }
+
+    public boolean isEmpty() {
+        return snapshot == null && loaded.isEmpty();
+    }
+
+    // All users; decodes whatever is still only in the snapshot first
+    public Collection<User> values() {
+        MetadataSnapshot base = snapshot;
+        if (base != null) {
+            base.forEachUser(user -> loaded.putIfAbsent(user.getUsername(), user));
+            snapshot = null;
+        }
+        return new ArrayList<>(loaded.values());
+    }
+}